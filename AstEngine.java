@@ -0,0 +1,553 @@
+import com.sun.source.tree.AssignmentTree;
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.CompoundAssignmentTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.ParenthesizedTree;
+import com.sun.source.tree.ReturnTree;
+import com.sun.source.tree.StatementTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.TryTree;
+import com.sun.source.tree.UnaryTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Rewrite engine on the syntax tree of the JDK compiler, the alternative to the regex passes.
+ * <p>
+ * Every file is parsed once, without attribution, by a compiler and file manager that are set up once per
+ * thread. Declarations of the types of the active {@link ResourceRule}s and of {@code Statement} are found as
+ * statements of a block, their scope is the rest of that block and usages are identifiers in it, so comments,
+ * string literals and formatting cannot confuse it. The edits are the ones the regex engine makes:
+ * <pre>
+ * PreparedStatement ps = conn.prepareStatement(sql);     try ( var generatedVariable1 = conn.prepareStatement(sql) ) {
+ * ps.setInt(1, id);                                  -&gt;  generatedVariable1.setInt(1, id);
+ * ...                                                    ...
+ * }                                                      } }
+ * </pre>
+ * A {@code Statement} created only to be chained on, like {@code conn.createStatement().executeQuery(sql)}
+ * in a declaration or a try resource, becomes a resource of its own declared right before.
+ */
+final class AstEngine {
+
+    private static final JavaCompiler JAVAC = ToolProvider.getSystemJavaCompiler();
+
+    private static final ThreadLocal<StandardJavaFileManager> FILES = ThreadLocal.withInitial(
+            () -> JAVAC.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8)
+    );
+
+    private static final List<String> OPTIONS = List.of("-proc:none");
+
+    /**
+     * Calls whose result is a resource that has to be closed.
+     */
+    private static final Set<String> CREATORS = Set.of("createStatement", "prepareStatement", "prepareCall");
+
+    /**
+     * Closed here whatever the rules are, the regex engine has no declaration shape for it.
+     */
+    private static final ResourceRule STATEMENT = ResourceRule.Declared.of(
+            "Statement", "(?:java\\.sql\\.)?Statement", true, "Statement"
+    );
+
+    private AstEngine() {
+    }
+
+    private static final class Source extends SimpleJavaFileObject {
+        private final String content;
+
+        Source(Path f, String content) {
+            super(f.toUri(), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+
+    private static final class Edit {
+        final int start;
+        final int end;
+        final String text;
+
+        Edit(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Declaration or try resource that might be rewritten.
+     */
+    private static final class Candidate {
+        final VariableTree variable;
+        final BlockTree block;
+        final int index;
+
+        Candidate(VariableTree variable, BlockTree block, int index) {
+            this.variable = variable;
+            this.block = block;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Runs every rewrite over the content of one file.
+     *
+     * @return rewritten content or {@code null} when nothing was replaced
+     */
+    static String rewrite(Path f, String original, IntPredicate changed) {
+        if (JAVAC == null) {
+            throw new IllegalStateException("The AST engine needs a JDK, not a JRE");
+        }
+        long detect = System.nanoTime();
+        var firstError = new long[]{0};
+        var task = (JavacTask) JAVAC.getTask(
+                null,
+                FILES.get(),
+                d -> {
+                    if (d.getKind() == Diagnostic.Kind.ERROR && firstError[0] == 0) {
+                        firstError[0] = Math.max(d.getLineNumber(), 1);
+                    }
+                },
+                OPTIONS,
+                null,
+                List.of(new Source(f, original))
+        );
+        CompilationUnitTree unit;
+        try {
+            unit = task.parse().iterator().next();
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Metrics.pattern("parse", detect, 1);
+        if (firstError[0] != 0) {
+            StatementCloser.warn(f.getFileName());
+            StatementCloser.skip("Does not parse -> skipping", (int) firstError[0]);
+            Metrics.phase(Metrics.Phase.DETECT, detect);
+            return null;
+        }
+        var rewrite = new Rewrite(f, original, unit, Trees.instance(task).getSourcePositions(), changed);
+        rewrite.scan();
+        Metrics.phase(Metrics.Phase.DETECT, detect);
+        long extract = System.nanoTime();
+        try {
+            return rewrite.apply();
+        } finally {
+            Metrics.phase(Metrics.Phase.EXTRACT, extract);
+        }
+    }
+
+    private static final class Rewrite {
+        final Path f;
+        final String original;
+        final CompilationUnitTree unit;
+        final SourcePositions positions;
+        final IntPredicate changed;
+        final StatementCloser.Lines lines;
+        final List<Candidate> candidates = new ArrayList<>();
+        final List<MethodInvocationTree> chained = new ArrayList<>();
+        final List<Edit> edits = new ArrayList<>();
+        final Map<String, Integer> found = new LinkedHashMap<>();
+        final Map<String, Integer> replaced = new LinkedHashMap<>();
+
+        Rewrite(Path f, String original, CompilationUnitTree unit, SourcePositions positions, IntPredicate changed) {
+            this.f = f;
+            this.original = original;
+            this.unit = unit;
+            this.positions = positions;
+            this.changed = changed;
+            this.lines = new StatementCloser.Lines(original);
+        }
+
+        int start(Tree t) {
+            return (int) positions.getStartPosition(unit, t);
+        }
+
+        int end(Tree t) {
+            return (int) positions.getEndPosition(unit, t);
+        }
+
+        void scan() {
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitBlock(BlockTree block, Void unused) {
+                    var statements = block.getStatements();
+                    for (int i = 0; i < statements.size(); i++) {
+                        if (statements.get(i) instanceof VariableTree) {
+                            candidates.add(new Candidate((VariableTree) statements.get(i), block, i));
+                        }
+                    }
+                    return super.visitBlock(block, unused);
+                }
+
+                @Override
+                public Void visitTry(TryTree tree, Void unused) {
+                    for (var resource : tree.getResources()) {
+                        if (resource instanceof VariableTree) {
+                            candidates.add(new Candidate((VariableTree) resource, null, -1));
+                        }
+                    }
+                    return super.visitTry(tree, unused);
+                }
+
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree tree, Void unused) {
+                    var receiver = receiver(tree);
+                    if (receiver instanceof MethodInvocationTree && CREATORS.contains(name((MethodInvocationTree) receiver))) {
+                        chained.add((MethodInvocationTree) receiver);
+                    }
+                    return super.visitMethodInvocation(tree, unused);
+                }
+            }.scan(unit, null);
+            // outer declarations first, so the usages they rename are known when an inner one copies text
+            candidates.sort(Comparator.comparingInt(c -> start(c.variable)));
+        }
+
+        String apply() {
+            var fixed = new ArrayList<MethodInvocationTree>();
+            boolean announced = false;
+            for (var c : candidates) {
+                int line = lines.of(start(c.variable));
+                if (!changed.test(line)) {
+                    continue;
+                }
+                if (c.block == null) {
+                    var statement = statement(c.variable.getInitializer());
+                    if (statement != null) {
+                        announced = announce(announced);
+                        count(found, "Statement");
+                        resource(c.variable, statement);
+                        fixed.add(statement);
+                        count(replaced, "Statement");
+                        StatementCloser.report.get().finding("rewritten", line, "Statement rewritten into try-with-resources");
+                    }
+                    continue;
+                }
+                var rule = rule(c.variable);
+                if (rule == null) {
+                    continue;
+                }
+                var kind = rule.type();
+                announced = announce(announced);
+                count(found, kind);
+                if (!rule.closes()) {
+                    StatementCloser.warn("Detected possibly non-closed " + kind + " at line " + line);
+                    StatementCloser.report.get().finding("unclosed-resource", line, "Detected possibly non-closed " + kind);
+                    continue;
+                }
+                var statement = statement(c.variable.getInitializer());
+                if (statement != null) {
+                    count(found, "Statement");
+                }
+                try {
+                    declaration(c, statement);
+                    count(replaced, kind);
+                    StatementCloser.report.get().finding("rewritten", line, kind + " rewritten into try-with-resources");
+                    if (statement != null) {
+                        fixed.add(statement);
+                        count(replaced, "Statement");
+                        StatementCloser.report.get().finding("rewritten", line, "Statement rewritten into try-with-resources");
+                    }
+                } catch (IllegalStateException e) {
+                    StatementCloser.skip(e.getMessage(), line);
+                }
+            }
+            for (var call : chained) {
+                if (!fixed.contains(call) && changed.test(lines.of(start(call)))) {
+                    StatementCloser.warn(f.getFileName());
+                    StatementCloser.warn("Detected possibly non-closed resources at: " + f.getFileName());
+                    StatementCloser.report.get().finding(
+                            "unclosed-resource",
+                            lines.of(start(call)),
+                            "Detected possibly non-closed resources"
+                    );
+                    break;
+                }
+            }
+            found.forEach(StatementCloser.report.get()::found);
+            replaced.forEach(StatementCloser.report.get()::replaced);
+            if (edits.isEmpty()) {
+                return null;
+            }
+            StatementCloser.info(f.getFileName());
+            StatementCloser.info("Found possible issues:");
+            found.forEach((k, v) -> StatementCloser.info(k + " - " + v));
+            StatementCloser.info("Replaced: ");
+            replaced.forEach((k, v) -> StatementCloser.info(k + " - " + v));
+            return text(0, original.length());
+        }
+
+        /**
+         * Names the file once before its first skip reason.
+         */
+        boolean announce(boolean announced) {
+            if (!announced) {
+                StatementCloser.warn(f.getFileName());
+            }
+            return true;
+        }
+
+        /**
+         * Wraps the rest of the block after the declaration into a try-with-resources statement.
+         */
+        void declaration(Candidate c, MethodInvocationTree statement) {
+            var v = c.variable;
+            var init = v.getInitializer();
+            int from = start(v);
+            int end = end(v);
+            if (c.index + 1 < c.block.getStatements().size() && start(c.block.getStatements().get(c.index + 1)) == from) {
+                throw new IllegalStateException("Several variables in one declaration -> skipping");
+            }
+            if (c.index > 0 && start(c.block.getStatements().get(c.index - 1)) == from) {
+                throw new IllegalStateException("Several variables in one declaration -> skipping");
+            }
+            var name = v.getName().toString();
+            var rest = c.block.getStatements().subList(c.index + 1, c.block.getStatements().size());
+            var usages = usages(name, rest);
+            var nn = StatementCloser.generatedVariable();
+            var head = new StringBuilder("try ( ");
+            if (statement != null) {
+                var sn = "stmt_generated_" + StatementCloser.generatedStatement(f, start(statement));
+                head.append("var ").append(sn).append(" = ").append(text(start(statement), end(statement))).append("; ");
+                edits.add(new Edit(start(statement), end(statement), sn));
+            }
+            head.append("var ").append(nn).append(" = ");
+            edits.add(new Edit(from, start(init), head.toString()));
+            edits.add(new Edit(end(init), end, " ) {"));
+            for (var u : usages) {
+                edits.add(new Edit(start(u), end(u), nn));
+            }
+            int brace = end(c.block) - 1;
+            edits.add(new Edit(brace, brace, "} "));
+        }
+
+        /**
+         * Declares the statement a try resource is chained on as a resource of its own right before it.
+         */
+        void resource(VariableTree v, MethodInvocationTree statement) {
+            var sn = "stmt_generated_" + StatementCloser.generatedStatement(f, start(statement));
+            edits.add(new Edit(start(v), start(v), "var " + sn + " = " + text(start(statement), end(statement)) + "; "));
+            edits.add(new Edit(start(statement), end(statement), sn));
+        }
+
+        /**
+         * Identifiers naming the variable in its scope.
+         *
+         * @throws IllegalStateException when the variable is assigned, returned or shadowed there
+         */
+        List<IdentifierTree> usages(String name, List<? extends StatementTree> scope) {
+            var usages = new ArrayList<IdentifierTree>();
+            var scanner = new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitIdentifier(IdentifierTree tree, Void unused) {
+                    if (tree.getName().contentEquals(name)) {
+                        usages.add(tree);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree tree, Void unused) {
+                    // name() calls a method of the same name, only name.method() is a usage
+                    if (!(tree.getMethodSelect() instanceof IdentifierTree)) {
+                        scan(tree.getMethodSelect(), null);
+                    }
+                    scan(tree.getTypeArguments(), null);
+                    scan(tree.getArguments(), null);
+                    return null;
+                }
+
+                @Override
+                public Void visitAssignment(AssignmentTree tree, Void unused) {
+                    if (named(tree.getVariable(), name)) {
+                        throw new IllegalStateException("Fucked up definitions detected -> manual");
+                    }
+                    if (named(tree.getExpression(), name)) {
+                        throw new IllegalStateException("Resource escapes into another variable -> skipping");
+                    }
+                    return super.visitAssignment(tree, unused);
+                }
+
+                @Override
+                public Void visitCompoundAssignment(CompoundAssignmentTree tree, Void unused) {
+                    if (named(tree.getVariable(), name)) {
+                        throw new IllegalStateException("Fucked up definitions detected -> manual");
+                    }
+                    return super.visitCompoundAssignment(tree, unused);
+                }
+
+                @Override
+                public Void visitUnary(UnaryTree tree, Void unused) {
+                    if (named(tree.getExpression(), name)) {
+                        throw new IllegalStateException("Fucked up definitions detected -> manual");
+                    }
+                    return super.visitUnary(tree, unused);
+                }
+
+                @Override
+                public Void visitVariable(VariableTree tree, Void unused) {
+                    if (tree.getName().contentEquals(name)) {
+                        throw new IllegalStateException("Variable shadowed in its scope -> skipping");
+                    }
+                    if (named(tree.getInitializer(), name)) {
+                        throw new IllegalStateException("Resource escapes into another variable -> skipping");
+                    }
+                    return super.visitVariable(tree, unused);
+                }
+
+                @Override
+                public Void visitReturn(ReturnTree tree, Void unused) {
+                    if (tree.getExpression() != null && named(root(tree.getExpression()), name)) {
+                        throw new IllegalStateException("Detected a return statement -> skipping");
+                    }
+                    return super.visitReturn(tree, unused);
+                }
+            };
+            for (var s : scope) {
+                scanner.scan(s, null);
+            }
+            return usages;
+        }
+
+        /**
+         * Source of a range with the edits inside it applied.
+         */
+        String text(int from, int to) {
+            var sorted = new ArrayList<Edit>();
+            for (var e : edits) {
+                if (e.start >= from && e.end <= to && (e.start < to || to == original.length())) {
+                    sorted.add(e);
+                }
+            }
+            // inserts before replacements at the same position, longer replacements cover shorter ones
+            sorted.sort(Comparator.comparingInt((Edit e) -> e.start)
+                    .thenComparing(e -> e.end != e.start)
+                    .thenComparing(Comparator.comparingInt((Edit e) -> e.end).reversed()));
+            var sb = new StringBuilder(to - from + 64 * sorted.size());
+            int at = from;
+            for (var e : sorted) {
+                if (e.start < at) {
+                    continue;
+                }
+                sb.append(original, at, e.start).append(e.text);
+                at = e.end;
+            }
+            return sb.append(original, at, to).toString();
+        }
+
+        /**
+         * Rule of the resource a declaration holds, {@code null} when it is none or has no value to close.
+         */
+        ResourceRule rule(VariableTree v) {
+            var init = v.getInitializer();
+            if (init == null || init instanceof LiteralTree && ((LiteralTree) init).getValue() == null) {
+                return null;
+            }
+            var type = v.getType();
+            String name;
+            if (type instanceof IdentifierTree) {
+                name = ((IdentifierTree) type).getName().toString();
+            } else if (type instanceof MemberSelectTree) {
+                name = ((MemberSelectTree) type).getIdentifier().toString();
+            } else {
+                return null;
+            }
+            for (var rule : StatementCloser.STORE.rules) {
+                if (rule.declares(name)) {
+                    return rule;
+                }
+            }
+            if (STATEMENT.declares(name)) {
+                return STATEMENT;
+            }
+            return null;
+        }
+
+        /**
+         * {@code x.createStatement()} call some other call is chained on, e.g. {@code x.createStatement().executeQuery(sql)}.
+         */
+        MethodInvocationTree statement(ExpressionTree init) {
+            for (var e = init; e instanceof MethodInvocationTree; e = receiver((MethodInvocationTree) e)) {
+                var r = receiver((MethodInvocationTree) e);
+                if (r instanceof MethodInvocationTree && name((MethodInvocationTree) r).equals("createStatement")) {
+                    return (MethodInvocationTree) r;
+                }
+            }
+            return null;
+        }
+
+        void count(Map<String, Integer> counts, String kind) {
+            counts.merge(kind, 1, Integer::sum);
+        }
+    }
+
+    private static ExpressionTree receiver(MethodInvocationTree call) {
+        var select = call.getMethodSelect();
+        return select instanceof MemberSelectTree ? ((MemberSelectTree) select).getExpression() : null;
+    }
+
+    private static String name(MethodInvocationTree call) {
+        var select = call.getMethodSelect();
+        if (select instanceof MemberSelectTree) {
+            return ((MemberSelectTree) select).getIdentifier().toString();
+        } else if (select instanceof IdentifierTree) {
+            return ((IdentifierTree) select).getName().toString();
+        }
+        return "";
+    }
+
+    /**
+     * Variable a chain of calls and field accesses starts at.
+     */
+    private static ExpressionTree root(ExpressionTree e) {
+        while (true) {
+            if (e instanceof MethodInvocationTree) {
+                var r = receiver((MethodInvocationTree) e);
+                if (r == null) {
+                    return e;
+                }
+                e = r;
+            } else if (e instanceof MemberSelectTree) {
+                e = ((MemberSelectTree) e).getExpression();
+            } else if (e instanceof ParenthesizedTree) {
+                e = ((ParenthesizedTree) e).getExpression();
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private static boolean named(ExpressionTree e, String name) {
+        while (e instanceof ParenthesizedTree) {
+            e = ((ParenthesizedTree) e).getExpression();
+        }
+        return e instanceof IdentifierTree && ((IdentifierTree) e).getName().contentEquals(name);
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget for pattern matching.
+ * <p>
+ * The regex engine reads its input through {@link #charAt(int)} only, so a wrapped input lets a runaway
+ * match notice an expired deadline or an interrupt from the inside. Every scan gets the pattern budget, and
+ * all scans of one file share the file budget. Checking the clock on every 4096th character keeps the cost
+ * close to nothing.
+ * <pre>
+ * var m = pattern.matcher(Budget.wrap("psNamePattern", text));
+ * </pre>
+ * An expired budget throws {@link Exceeded}, which the rewrite passes on untouched so the whole file is
+ * abandoned.
+ */
+final class Budget implements CharSequence {
+
+    static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final String pattern;
+
+        Exceeded(String pattern, String message) {
+            super(message, null, false, false);
+            this.pattern = pattern;
+        }
+    }
+
+    /**
+     * Nanoseconds a single scan may take, {@code 0} for no limit.
+     */
+    static long patternNanos;
+
+    /**
+     * Nanoseconds all scans of one file may take together, {@code 0} for no limit.
+     */
+    static long fileNanos;
+
+    private static final ThreadLocal<long[]> fileDeadline = new ThreadLocal<>();
+
+    static {
+        reset();
+    }
+
+    private final CharSequence text;
+    private final String pattern;
+    private final long deadline;
+    private final boolean perFile;
+    private int reads;
+
+    private Budget(CharSequence text, String pattern, long deadline, boolean perFile) {
+        this.text = text;
+        this.pattern = pattern;
+        this.deadline = deadline;
+        this.perFile = perFile;
+    }
+
+    static void reset() {
+        patternNanos = TimeUnit.SECONDS.toNanos(10);
+        fileNanos = TimeUnit.SECONDS.toNanos(60);
+    }
+
+    /**
+     * Starts the file budget of the current thread.
+     */
+    static void startFile() {
+        if (fileNanos != 0) {
+            fileDeadline.set(new long[]{System.nanoTime() + fileNanos});
+        }
+    }
+
+    static void endFile() {
+        fileDeadline.remove();
+    }
+
+    /**
+     * Wraps the input of one scan, returns it as is when no budget is set.
+     */
+    static CharSequence wrap(String pattern, CharSequence text) {
+        var file = fileDeadline.get();
+        if (patternNanos == 0 && file == null) {
+            return text;
+        }
+        long now = System.nanoTime();
+        if (file != null && (patternNanos == 0 || file[0] - (now + patternNanos) < 0)) {
+            return new Budget(text, pattern, file[0], true);
+        }
+        return new Budget(text, pattern, now + patternNanos, false);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if ((++reads & 0xfff) == 0) {
+            check();
+        }
+        return text.charAt(index);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    private void check() {
+        if (System.nanoTime() - deadline > 0) {
+            throw new Exceeded(
+                    pattern,
+                    (perFile ? "File timed out in " : "Timed out in ") + pattern + " -> skipping"
+            );
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new Exceeded(pattern, "Interrupted in " + pattern + " -> skipping");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+/**
+ * Keeps one warm JVM around, so running the tool on a handful of files costs milliseconds instead of a JVM
+ * start and a cold JIT.
+ * <p>
+ * The daemon listens on a Unix domain socket that only its owner may connect to and runs the requests one
+ * after another, each with its own options and working directory. Output goes back to the client as it is
+ * written, followed by the exit code. A client that finds no daemon runs the request itself. Keep the socket
+ * in a directory of your own, a client trusts whatever listens on the path it is given.
+ * <pre>
+ * java -cp out StatementCloser --daemon "$XDG_RUNTIME_DIR/closer.sock" &amp;
+ * java -cp out StatementCloser --client "$XDG_RUNTIME_DIR/closer.sock" src/main/java/Dao.java --dry-run
+ * java -cp out StatementCloser --client "$XDG_RUNTIME_DIR/closer.sock" --shutdown
+ * </pre>
+ * A request is the number of arguments, the working directory and the arguments, written with
+ * {@link DataOutputStream}. The answer is a sequence of frames: a kind byte, then either the length and
+ * bytes of standard output or error, or the exit code, which ends the answer.
+ */
+final class Daemon {
+
+    static final String SHUTDOWN = "--shutdown";
+
+    private static final byte EXIT = 0;
+    private static final byte OUT = 1;
+    private static final byte ERR = 2;
+
+    private Daemon() {
+    }
+
+    /**
+     * Serves requests until one asks for a shutdown.
+     */
+    static int serve(Path socket) throws IOException {
+        var address = UnixDomainSocketAddress.of(socket);
+        if (Files.exists(socket)) {
+            boolean listening;
+            try {
+                SocketChannel.open(address).close();
+                listening = true;
+            } catch (IOException stale) {
+                listening = false;
+            }
+            if (listening) {
+                throw new IllegalStateException("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server, socket);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException ignore) {
+                }
+            }));
+            System.err.println("Listening on " + socket);
+            boolean running = true;
+            while (running) {
+                try (var channel = server.accept()) {
+                    running = handle(channel);
+                } catch (IOException e) {
+                    // the client went away, the next one may do better
+                    System.err.println("Request failed: " + e);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+        return 0;
+    }
+
+    /**
+     * Binds the socket in a directory only the owner can enter and moves it into place once it is private, so
+     * nobody else can connect in between.
+     */
+    private static void bind(ServerSocketChannel server, Path socket) throws IOException {
+        Path dir;
+        try {
+            dir = Files.createTempDirectory(
+                    socket.toAbsolutePath().getParent(),
+                    ".closer-",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))
+            );
+        } catch (UnsupportedOperationException e) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            return;
+        }
+        var staged = dir.resolve("s");
+        try {
+            server.bind(UnixDomainSocketAddress.of(staged));
+            Files.setPosixFilePermissions(staged, PosixFilePermissions.fromString("rw-------"));
+            Files.move(staged, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(staged);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * @return whether to go on serving
+     */
+    private static boolean handle(SocketChannel channel) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        var args = new String[in.readInt()];
+        var cwd = Paths.get(in.readUTF());
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        if (args.length == 1 && args[0].equals(SHUTDOWN)) {
+            exit(out, 0);
+            return false;
+        }
+        var stdout = System.out;
+        var stderr = System.err;
+        var requestOut = new PrintStream(new Frames(out, OUT), true, StandardCharsets.UTF_8);
+        var requestErr = new PrintStream(new Frames(out, ERR), true, StandardCharsets.UTF_8);
+        int code;
+        System.setOut(requestOut);
+        System.setErr(requestErr);
+        try {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("No path given");
+            }
+            if (Arrays.asList(args).contains("--watch")) {
+                throw new IllegalArgumentException("--watch runs in its own JVM, not in the daemon");
+            }
+            code = StatementCloser.run(cwd, args);
+        } catch (Exception | StackOverflowError e) {
+            e.printStackTrace();
+            code = 1;
+        } finally {
+            requestOut.flush();
+            requestErr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        exit(out, code);
+        return true;
+    }
+
+    private static void exit(DataOutputStream out, int code) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(code);
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends the request to the daemon and replays its output.
+     *
+     * @return exit code of the request
+     */
+    static int client(Path socket, String[] args) throws Exception {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            if (args.length == 1 && args[0].equals(SHUTDOWN)) {
+                return 0;
+            }
+            System.err.println("No daemon on " + socket + ", running here");
+            return StatementCloser.run(null, args);
+        }
+        try (channel) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            for (var arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == EXIT) {
+                    return in.readInt();
+                }
+                var bytes = in.readNBytes(in.readInt());
+                var target = kind == ERR ? System.err : System.out;
+                target.write(bytes);
+                target.flush();
+            }
+        }
+    }
+
+    /**
+     * One frame for every write, a {@link PrintStream} with auto flush writes whole lines.
+     */
+    private static final class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        Frames(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
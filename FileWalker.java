@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory tree on its own thread and hands matching files over through a bounded queue.
+ * <p>
+ * Only the directory stack of the walk and the queue are held in memory, and consumers can start working
+ * on the first file while the rest of the tree is still being listed.
+ */
+final class FileWalker implements AutoCloseable {
+
+    private static final Path END = Paths.get("");
+
+    private final Path root;
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private final List<PathMatcher> nameExcludes = new ArrayList<>();
+    private Pattern filePattern = Pattern.compile(".*");
+    private boolean followLinks = true;
+    private int capacity = 1024;
+
+    private BlockingQueue<Path> queue;
+    private Thread thread;
+    private volatile boolean closed;
+    private volatile long elapsed;
+
+    FileWalker(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Only files whose name matches the pattern are handed out.
+     */
+    FileWalker matching(Pattern filePattern) {
+        this.filePattern = filePattern;
+        return this;
+    }
+
+    /**
+     * Skips files and directories matching the glob.
+     * <p>
+     * Globs without a separator are matched against the name ({@code target}), others against the path
+     * relative to the root ({@code src/generated/**}).
+     */
+    FileWalker exclude(String glob) {
+        var matcher = root.getFileSystem().getPathMatcher("glob:" + glob);
+        if (glob.indexOf('/') < 0) {
+            nameExcludes.add(matcher);
+        } else {
+            excludes.add(matcher);
+        }
+        return this;
+    }
+
+    /**
+     * Whether symbolic links to directories are followed, loops are detected and skipped either way.
+     */
+    FileWalker followLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+        return this;
+    }
+
+    FileWalker capacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    FileWalker start() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        thread = new Thread(this::walk, "file-walker");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Takes the next matching file, blocking while the walk is still running.
+     *
+     * @return next file or {@code null} once the walk is done
+     */
+    Path next() throws InterruptedException {
+        var p = queue.take();
+        if (p == END) {
+            queue.put(END);
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Nanoseconds the walk took, {@code 0} while it is still running.
+     */
+    long elapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Drains the walker on the common pool and the calling thread.
+     * <p>
+     * The first exception thrown by the action is rethrown once all workers are done.
+     */
+    void forEach(Consumer<Path> action) throws Exception {
+        var workers = new ArrayList<Future<?>>();
+        for (int i = 1; i < ForkJoinPool.getCommonPoolParallelism(); i++) {
+            workers.add(ForkJoinPool.commonPool().submit(() -> drain(action), null));
+        }
+        Exception failure = null;
+        try {
+            drain(action);
+        } catch (RuntimeException e) {
+            failure = e;
+            close();
+        }
+        for (var w : workers) {
+            try {
+                w.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain(Consumer<Path> action) {
+        try {
+            Path p;
+            while ((p = next()) != null) {
+                action.accept(p);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+            queue.clear();
+            queue.offer(END);
+        }
+    }
+
+    /**
+     * Whether the walk would hand out the file, for file lists that come from elsewhere.
+     */
+    boolean accepts(Path file) {
+        return Files.isRegularFile(file)
+                && filePattern.matcher(file.getFileName().toString()).matches()
+                && !excludes(file);
+    }
+
+    /**
+     * Whether the path or one of its parents below the root is excluded.
+     */
+    boolean excludes(Path path) {
+        for (var p = path; p != null && !p.equals(root); p = p.getParent()) {
+            if (excluded(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void walk() {
+        long start = System.nanoTime();
+        try {
+            var options = followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : EnumSet.noneOf(FileVisitOption.class);
+            Files.walkFileTree(root, options, Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (closed) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return !dir.equals(root) && excluded(dir)
+                            ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (closed) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (attrs.isRegularFile()
+                            && filePattern.matcher(file.getFileName().toString()).matches()
+                            && !excluded(file)) {
+                        try {
+                            queue.put(file);
+                        } catch (InterruptedException e) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    if (exc instanceof FileSystemLoopException) {
+                        System.err.println("Skipping symbolic link loop at: " + file);
+                    } else {
+                        exc.printStackTrace();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            elapsed = System.nanoTime() - start;
+            if (!closed) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException ignore) {
+                }
+            }
+        }
+    }
+
+    private boolean excluded(Path path) {
+        var name = path.getFileName();
+        for (var m : nameExcludes) {
+            if (name != null && m.matches(name)) {
+                return true;
+            }
+        }
+        if (!excludes.isEmpty()) {
+            var relative = root.relativize(path);
+            for (var m : excludes) {
+                if (m.matches(relative)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -1,11 +1,11 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 class GeneratedVariableAnalyzer {
 
@@ -51,58 +51,196 @@ class GeneratedVariableAnalyzer {
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        var startPath = args[0];
-        var filePattern = Pattern.compile(".*\\.java");
-        List<Path> files = Files.list(Paths.get(startPath)).collect(Collectors.toList());
-        while (files.stream().anyMatch(Files::isDirectory)) {
-            files = files.parallelStream().flatMap(path -> {
-                if (Files.isDirectory(path)) {
-                    try {
-                        return Files.list(path);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    static final String PREFIX = "generatedVariable";
+
+    /**
+     * Usages of generated variables keyed by their numeric suffix.
+     * <p>
+     * Open addressing over an int array, the few names whose suffix does not round trip through an int
+     * (leading zeros, overflow) go to a plain set instead.
+     */
+    static final class Index {
+        private int[] keys = new int[64];
+        private int size;
+        private final Set<String> other = new HashSet<>();
+
+        void add(String content, int from, int to) {
+            int key = key(content, from, to);
+            if (key < 0) {
+                other.add(content.substring(from, to));
+                return;
+            }
+            if (size * 2 >= keys.length) {
+                var old = keys;
+                keys = new int[old.length * 2];
+                size = 0;
+                for (int k : old) {
+                    if (k != 0) {
+                        insert(k);
                     }
-                } else {
-                    return filePattern.matcher(path.getFileName().toString()).matches()
-                            ? Stream.of(path)
-                            : Stream.empty();
                 }
-                return Stream.empty();
-            }).collect(Collectors.toList());
-        }
-        var collect = files.parallelStream().map(f -> {
-            try {
-                var content = Files.readString(f);
-                var def = Pattern.compile("(?m)\\s+(generatedVariable\\d+)\\s+");
-                var broken = def.matcher(content).results().map(rs -> {
-                    var name = rs.group(1);
-                    if (name == null || name.trim().isBlank()) return null;
-                    var exec = Pattern.compile("(?m)\\b" + name + "\\.exe.*");
-                    var next = Pattern.compile("(?m)\\b" + name + "\\.next.*");
-                    return exec.matcher(content).results().count() == 0 && next.matcher(content).results().count() == 0
-                            ? name
-                            : null;
-                }).filter(Objects::nonNull).collect(Collectors.toList());
-                return !broken.isEmpty()
-                        ? new Pair<>(f.toString(), broken)
-                        : null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
             }
-        }).filter(Objects::nonNull).collect(Collectors.toList());
-        System.out.println(collect.size());
-        collect.forEach(p -> {
-            try {
-                System.out.println(p.getA());
-                Thread.sleep(10);
-                p.getB().forEach(System.err::println);
-                Thread.sleep(10);
-                System.out.println();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            insert(key + 1);
+        }
+
+        boolean contains(String content, int from, int to) {
+            int key = key(content, from, to);
+            if (key < 0) {
+                return other.contains(content.substring(from, to));
+            }
+            key++;
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void insert(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            size++;
+        }
+
+        private static int mix(int key) {
+            return key * 0x9E3779B9 >>> 7;
+        }
+
+        /**
+         * Numeric suffix of the name, {@code -1} when it is not the canonical form of an int below the maximum.
+         */
+        private static int key(String content, int from, int to) {
+            int digits = from + PREFIX.length();
+            if (to - digits > 9 || to - digits > 1 && content.charAt(digits) == '0') {
+                return -1;
+            }
+            int key = 0;
+            for (int i = digits; i < to; i++) {
+                key = key * 10 + content.charAt(i) - '0';
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Generated variables that are defined but never used with {@code .exe*} or {@code .next*}.
+     * <p>
+     * A definition is the name surrounded by whitespace, definitions never share the whitespace between them,
+     * and a usage is the name at a word boundary followed by one of the calls. Both are collected in one scan over the occurrences of the prefix, so the cost is
+     * linear in the size of the content.
+     *
+     * @return names in the order of their definitions
+     */
+    static List<String> broken(String content) {
+        var used = new Index();
+        var definitions = new int[16];
+        int defined = 0;
+        int consumed = 0;
+        for (int at = content.indexOf(PREFIX); at >= 0; at = content.indexOf(PREFIX, at + 1)) {
+            int end = at + PREFIX.length();
+            while (end < content.length() && content.charAt(end) >= '0' && content.charAt(end) <= '9') {
+                end++;
+            }
+            if (end == at + PREFIX.length()) {
+                continue;
+            }
+            if (
+                    at > consumed && whitespace(content.charAt(at - 1))
+                            && end < content.length() && whitespace(content.charAt(end))
+            ) {
+                if (2 * defined == definitions.length) {
+                    definitions = Arrays.copyOf(definitions, definitions.length * 2);
+                }
+                definitions[2 * defined] = at;
+                definitions[2 * defined + 1] = end;
+                defined++;
+                consumed = whitespaceEnd(content, end);
+            }
+            if (
+                    (at == 0 || !word(content.charAt(at - 1)))
+                            && (content.startsWith(".exe", end) || content.startsWith(".next", end))
+            ) {
+                used.add(content, at, end);
+            }
+        }
+        var broken = new ArrayList<String>();
+        for (int i = 0; i < defined; i++) {
+            int at = definitions[2 * i];
+            int end = definitions[2 * i + 1];
+            if (!used.contains(content, at, end)) {
+                broken.add(content.substring(at, end));
             }
+        }
+        return broken;
+    }
+
+    private static int whitespaceEnd(String content, int from) {
+        while (from < content.length() && whitespace(content.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean whitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static boolean word(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    public static void main(String[] args) throws Exception {
+        var walker = new FileWalker(Paths.get(args[0])).matching(Pattern.compile(".*\\.java"));
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--exclude":
+                    walker.exclude(args[++i]);
+                    break;
+                case "--no-follow-links":
+                    walker.followLinks(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        var prefilter = new LiteralPrefilter("generatedVariable");
+        var collect = new ConcurrentLinkedQueue<Pair<String, List<String>>>();
+        try (walker) {
+            walker.start().forEach(f -> {
+                try {
+                    var bytes = Files.readAllBytes(f);
+                    if (!prefilter.test(bytes)) {
+                        return;
+                    }
+                    var content = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+                    var broken = broken(content);
+                    if (!broken.isEmpty()) {
+                        collect.add(new Pair<>(f.toString(), broken));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        // workers finish in any order, the report should not
+        var sorted = new ArrayList<>(collect);
+        sorted.sort(Comparator.comparing(Pair::getA));
+        System.out.println(sorted.size());
+        sorted.forEach(p -> {
+            System.out.println(p.getA());
+            System.out.flush();
+            p.getB().forEach(System.err::println);
+            System.err.flush();
+            System.out.println();
         });
     }
 }
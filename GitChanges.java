@@ -0,0 +1,195 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Files and lines changed in the local git working tree since a base revision.
+ * <p>
+ * Asks the {@code git} executable for the files that differ from the base, staged or not, plus the untracked
+ * ones that are not ignored; nothing is fetched. With line ranges the diff is read once more without context,
+ * so detection can be limited to the lines a change touched. Untracked files count as changed everywhere.
+ * <pre>
+ * java -cp out StatementCloser src --since origin/main --changed-lines
+ * </pre>
+ */
+final class GitChanges {
+
+    static final IntPredicate ALL = line -> true;
+
+    private static final Pattern HUNK = Pattern.compile("^@@ -\\d+(?:,\\d+)? \\+(\\d+)(?:,(\\d+))? @@");
+
+    private final List<Path> files;
+    private final Map<Path, BitSet> lines;
+
+    private GitChanges(List<Path> files, Map<Path, BitSet> lines) {
+        this.files = files;
+        this.lines = lines;
+    }
+
+    /**
+     * @param root  directory the changes are listed for, paths are resolved against it
+     * @param base  any revision git understands
+     * @param lines whether to collect the changed line ranges too
+     */
+    static GitChanges since(Path root, String base, boolean lines) throws IOException {
+        var changed = new LinkedHashSet<Path>();
+        var names = new HashSet<String>();
+        for (var name : git(root, "diff", "--name-only", "-z", "--relative", "--diff-filter=d", base, "--").split("\0")) {
+            if (!name.isEmpty()) {
+                changed.add(root.resolve(name));
+                names.add(name);
+            }
+        }
+        var untracked = new ArrayList<Path>();
+        for (var name : git(root, "ls-files", "-z", "--others", "--exclude-standard").split("\0")) {
+            if (!name.isEmpty()) {
+                untracked.add(root.resolve(name));
+            }
+        }
+        changed.addAll(untracked);
+        Map<Path, BitSet> ranges = null;
+        if (lines) {
+            ranges = hunks(root, names, git(root, "diff", "-U0", "--no-color", "--no-ext-diff", "--no-prefix", "--relative", "--diff-filter=d", base, "--"));
+            for (var f : untracked) {
+                ranges.put(key(f), null);
+            }
+        }
+        return new GitChanges(new ArrayList<>(changed), ranges);
+    }
+
+    List<Path> files() {
+        return files;
+    }
+
+    /**
+     * Changed one based lines of a file, every line when no ranges were collected.
+     */
+    IntPredicate lines(Path f) {
+        if (lines == null) {
+            return ALL;
+        }
+        var key = key(f);
+        if (!lines.containsKey(key)) {
+            return line -> false;
+        }
+        var set = lines.get(key);
+        return set == null ? ALL : set::get;
+    }
+
+    /**
+     * Changed lines per file of a {@code -U0} diff, the files are those of {@code names}.
+     */
+    private static Map<Path, BitSet> hunks(Path root, Set<String> names, String diff) {
+        var ranges = new HashMap<Path, BitSet>();
+        BitSet current = null;
+        boolean header = false;
+        for (var line : diff.split("\n")) {
+            if (line.startsWith("diff --git ")) {
+                header = true;
+                current = null;
+            } else if (header && line.startsWith("+++ ")) {
+                var name = name(line.substring(4), names);
+                current = name == null ? null : ranges.computeIfAbsent(key(root.resolve(name)), k -> new BitSet());
+            } else if (line.startsWith("@@")) {
+                header = false;
+                var m = HUNK.matcher(line);
+                if (current != null && m.find()) {
+                    int start = Integer.parseInt(m.group(1));
+                    int count = m.group(2) == null ? 1 : Integer.parseInt(m.group(2));
+                    if (count == 0) {
+                        // a pure deletion sits between the line it follows and the next one
+                        current.set(Math.max(start, 1), start + 2);
+                    } else {
+                        current.set(start, start + count);
+                    }
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * The listed name a {@code +++} header is for, {@code null} when it is none of them.
+     * <p>
+     * Git ends the header with a tab when the name contains a space, and may append more after it, so the
+     * name is taken from the list rather than from the header alone.
+     */
+    private static String name(String header, Set<String> names) {
+        var name = unquote(header.endsWith("\t") ? header.substring(0, header.length() - 1) : header);
+        if (names.contains(name)) {
+            return name;
+        }
+        String longest = null;
+        for (var n : names) {
+            if (name.startsWith(n) && (longest == null || n.length() > longest.length())) {
+                longest = n;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Git quotes names with unusual characters C style.
+     */
+    private static String unquote(String name) {
+        if (!name.startsWith("\"")) {
+            return name;
+        }
+        var bytes = new ByteArrayOutputStream();
+        for (int i = 1; i < name.length() - 1; i++) {
+            char c = name.charAt(i);
+            if (c != '\\') {
+                bytes.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            char e = name.charAt(++i);
+            if (e >= '0' && e <= '7') {
+                bytes.write(Integer.parseInt(name.substring(i, i + 3), 8));
+                i += 2;
+            } else {
+                bytes.write(e == 'n' ? '\n' : e == 't' ? '\t' : e);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Path key(Path f) {
+        return f.toAbsolutePath().normalize();
+    }
+
+    private static String git(Path root, String... args) throws IOException {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.add("-C");
+        command.add(root.toString());
+        command.add("-c");
+        command.add("core.quotePath=false");
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        process.getOutputStream().close();
+        var out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            int code = process.waitFor();
+            if (code != 0) {
+                throw new IOException("git " + String.join(" ", args) + " exited with " + code);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for git", e);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk index of the files seen by previous runs.
+ * <p>
+ * Every entry holds the size, modification time and content hash of a file together with the outcome of
+ * the last run on it. The index is stored as a flat binary file and read back through a memory mapping.
+ * It is discarded as a whole when the key, built from the tool version and the patterns, does not match.
+ * <pre>
+ * int magic, int format, long key, int entries
+ * entries * (utf path, long size, long mtime, long hash, byte status, utf reason)
+ * </pre>
+ */
+final class IncrementalCache {
+
+    private static final int MAGIC = 0x53434958;
+    private static final int FORMAT = 1;
+
+    enum Status {
+        CLEAN,
+        REWRITTEN,
+        SKIPPED
+    }
+
+    static final class Entry {
+        final long size;
+        final long modified;
+        final long hash;
+        final Status status;
+        final String reason;
+
+        Entry(long size, long modified, long hash, Status status, String reason) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    private final Path file;
+    private final long key;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private IncrementalCache(Path file, long key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * Loads the index, an index that is missing, unreadable or built with another key yields an empty cache.
+     */
+    static IncrementalCache load(Path file, long key) {
+        var cache = new IncrementalCache(file, key);
+        if (!Files.isRegularFile(file)) {
+            return cache;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT || in.getLong() != key) {
+                return cache;
+            }
+            int count = in.getInt();
+            var statuses = Status.values();
+            for (int i = 0; i < count; i++) {
+                var path = readUtf(in);
+                var size = in.getLong();
+                var modified = in.getLong();
+                var hash = in.getLong();
+                var status = statuses[in.get()];
+                var reason = readUtf(in);
+                cache.entries.put(path, new Entry(size, modified, hash, status, reason.isEmpty() ? null : reason));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable cache " + file + ": " + e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the index next to its final location and moves it in place.
+     */
+    void save() throws IOException {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(key);
+            out.writeInt(entries.size());
+            for (var e : entries.entrySet()) {
+                var v = e.getValue();
+                writeUtf(out, e.getKey());
+                out.writeLong(v.size);
+                out.writeLong(v.modified);
+                out.writeLong(v.hash);
+                out.writeByte(v.status.ordinal());
+                writeUtf(out, v.reason == null ? "" : v.reason);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Whether the file has the same size and modification time as recorded, without reading it.
+     */
+    boolean unchanged(Path path, long size, long modified) {
+        var e = entries.get(key(path));
+        return e != null && e.size == size && e.modified == modified;
+    }
+
+    /**
+     * Whether the content hashes to the recorded value.
+     * If so the entry is refreshed with the new size and modification time.
+     */
+    boolean unchanged(Path path, long size, long modified, long hash) {
+        var k = key(path);
+        var e = entries.get(k);
+        if (e != null && e.hash == hash) {
+            entries.put(k, new Entry(size, modified, hash, e.status, e.reason));
+            return true;
+        }
+        return false;
+    }
+
+    void record(Path path, long size, long modified, long hash, Status status, String reason) {
+        entries.put(key(path), new Entry(size, modified, hash, status, reason));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    static long hash(byte[] content) {
+        var crc = new CRC32C();
+        crc.update(content);
+        var adler = new Adler32();
+        adler.update(content);
+        return crc.getValue() << 32 | adler.getValue();
+    }
+
+    static long hash(ByteBuffer content) {
+        var crc = new CRC32C();
+        crc.update(content.duplicate());
+        var adler = new Adler32();
+        adler.update(content.duplicate());
+        return crc.getValue() << 32 | adler.getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a over the parts, used as the invalidation key.
+     */
+    static long key(String... parts) {
+        long h = 0xcbf29ce484222325L;
+        for (var part : parts) {
+            for (byte b : part.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static String readUtf(ByteBuffer in) {
+        int length = in.getInt();
+        var bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeUtf(DataOutputStream out, String s) throws IOException {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
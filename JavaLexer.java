@@ -0,0 +1,235 @@
+/**
+ * Allocation free tokenizer for Java sources.
+ * <p>
+ * Splits the input into identifiers, numbers, literals, comments and single character operators.
+ * String, character and text block literals as well as comments are returned as one token, so braces and
+ * quotes inside them never reach the caller. All state lives in primitive fields and a lexer can be
+ * reused with {@link #reset(CharSequence, int, int)}.
+ * <pre>
+ * var lexer = new JavaLexer().reset(source, 0, source.length());
+ * for (int t = lexer.next(); t != JavaLexer.EOF; t = lexer.next()) {
+ *     ... lexer.start(), lexer.end()
+ * }
+ * </pre>
+ */
+final class JavaLexer {
+
+    static final int EOF = 0;
+    static final int IDENTIFIER = 1;
+    static final int NUMBER = 2;
+    static final int STRING = 3;
+    static final int CHAR = 4;
+    static final int TEXT_BLOCK = 5;
+    static final int LINE_COMMENT = 6;
+    static final int BLOCK_COMMENT = 7;
+    static final int OPERATOR = 8;
+
+    /**
+     * Returned by {@link #closingBrace(CharSequence, int)} when the range starts or ends inside a block comment.
+     */
+    static final int IN_COMMENT = -2;
+
+    private CharSequence in;
+    private int pos;
+    private int limit;
+    private int type;
+    private int start;
+    private int end;
+    private boolean terminated;
+
+    JavaLexer reset(CharSequence in, int from, int to) {
+        this.in = in;
+        this.pos = from;
+        this.limit = to;
+        this.type = EOF;
+        this.start = from;
+        this.end = from;
+        this.terminated = true;
+        return this;
+    }
+
+    int type() {
+        return type;
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    /**
+     * Whether the last literal or comment was closed before the end of the line or input.
+     */
+    boolean terminated() {
+        return terminated;
+    }
+
+    /**
+     * First character of the current token, for operators the operator itself.
+     */
+    char first() {
+        return in.charAt(start);
+    }
+
+    /**
+     * Whether the current token is exactly the given text.
+     */
+    boolean is(String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (in.charAt(start + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Advances to the next token, whitespace is skipped.
+     *
+     * @return token type, {@link #EOF} at the end of the range
+     */
+    int next() {
+        int i = pos;
+        while (i < limit && in.charAt(i) <= ' ') {
+            i++;
+        }
+        start = i;
+        terminated = true;
+        if (i >= limit) {
+            pos = end = limit;
+            return type = EOF;
+        }
+        char c = in.charAt(i);
+        if (c == '/' && i + 1 < limit && in.charAt(i + 1) == '/') {
+            i += 2;
+            while (i < limit && in.charAt(i) != '\n') {
+                i++;
+            }
+            type = LINE_COMMENT;
+        } else if (c == '/' && i + 1 < limit && in.charAt(i + 1) == '*') {
+            i = blockComment(i + 2);
+            type = BLOCK_COMMENT;
+        } else if (c == '"') {
+            if (i + 2 < limit && in.charAt(i + 1) == '"' && in.charAt(i + 2) == '"') {
+                i = textBlock(i + 3);
+                type = TEXT_BLOCK;
+            } else {
+                i = quoted(i + 1, '"');
+                type = STRING;
+            }
+        } else if (c == '\'') {
+            i = quoted(i + 1, '\'');
+            type = CHAR;
+        } else if (identifierStart(c)) {
+            i++;
+            while (i < limit && identifierPart(in.charAt(i))) {
+                i++;
+            }
+            type = IDENTIFIER;
+        } else if (c >= '0' && c <= '9') {
+            i++;
+            while (i < limit && (identifierPart(in.charAt(i)) || in.charAt(i) == '.')) {
+                i++;
+            }
+            type = NUMBER;
+        } else {
+            i++;
+            type = OPERATOR;
+        }
+        pos = end = i;
+        return type;
+    }
+
+    /**
+     * Finds the brace closing the block that {@code from} is in.
+     *
+     * @return offset of the first unbalanced {@code '}'}, {@code -1} if there is none or {@link #IN_COMMENT}
+     */
+    static int closingBrace(CharSequence in, int from) {
+        var lexer = new JavaLexer().reset(in, from, in.length());
+        int depth = 0;
+        for (int t = lexer.next(); t != EOF; t = lexer.next()) {
+            if (t == OPERATOR) {
+                char c = lexer.first();
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    if (--depth < 0) {
+                        return lexer.start;
+                    }
+                } else if (c == '*' && lexer.end < in.length() && in.charAt(lexer.end) == '/') {
+                    return IN_COMMENT;
+                }
+            } else if (t == BLOCK_COMMENT && !lexer.terminated) {
+                return IN_COMMENT;
+            }
+        }
+        return -1;
+    }
+
+    private int blockComment(int i) {
+        while (i + 1 < limit) {
+            if (in.charAt(i) == '*' && in.charAt(i + 1) == '/') {
+                return i + 2;
+            }
+            i++;
+        }
+        terminated = false;
+        return limit;
+    }
+
+    private int textBlock(int i) {
+        while (i + 2 < limit) {
+            char c = in.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"' && in.charAt(i + 1) == '"' && in.charAt(i + 2) == '"') {
+                return i + 3;
+            } else {
+                i++;
+            }
+        }
+        terminated = false;
+        return limit;
+    }
+
+    private int quoted(int i, char quote) {
+        while (i < limit) {
+            char c = in.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else if (c == '\n') {
+                break;
+            } else {
+                i++;
+            }
+        }
+        terminated = false;
+        return Math.min(i, limit);
+    }
+
+    private static boolean identifierStart(char c) {
+        return c >= 'a' && c <= 'z'
+                || c >= 'A' && c <= 'Z'
+                || c == '_'
+                || c == '$'
+                || c > 0x7f && Character.isJavaIdentifierStart(c);
+    }
+
+    private static boolean identifierPart(char c) {
+        return c >= 'a' && c <= 'z'
+                || c >= 'A' && c <= 'Z'
+                || c >= '0' && c <= '9'
+                || c == '_'
+                || c == '$'
+                || c > 0x7f && Character.isJavaIdentifierPart(c);
+    }
+}
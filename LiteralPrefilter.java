@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-literal search over raw file bytes.
+ * <p>
+ * The literals are compiled into an Aho-Corasick automaton with a full transition table, so a file is
+ * checked for all of them in one linear pass with a single table lookup per byte. Files without any of the
+ * literals can be dropped before they are decoded or reach a regular expression.
+ */
+final class LiteralPrefilter {
+
+    private final int[] delta;
+    private final boolean[] accept;
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    LiteralPrefilter(String... literals) {
+        int max = 1;
+        for (var l : literals) {
+            max += l.getBytes(StandardCharsets.UTF_8).length;
+        }
+        delta = new int[max << 8];
+        accept = new boolean[max];
+        int states = 1;
+        for (var l : literals) {
+            int s = 0;
+            for (byte b : l.getBytes(StandardCharsets.UTF_8)) {
+                int at = s << 8 | b & 0xff;
+                if (delta[at] == 0) {
+                    delta[at] = states++;
+                }
+                s = delta[at];
+            }
+            accept[s] = true;
+        }
+        var fail = new int[max];
+        var queue = new ArrayDeque<Integer>();
+        for (int b = 0; b < 256; b++) {
+            if (delta[b] != 0) {
+                queue.add(delta[b]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int r = queue.poll();
+            accept[r] |= accept[fail[r]];
+            for (int b = 0; b < 256; b++) {
+                int at = r << 8 | b;
+                int s = delta[at];
+                if (s != 0) {
+                    fail[s] = delta[fail[r] << 8 | b];
+                    queue.add(s);
+                } else {
+                    delta[at] = delta[fail[r] << 8 | b];
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether any of the literals occurs in the range.
+     */
+    boolean matches(byte[] content, int offset, int length) {
+        var delta = this.delta;
+        var accept = this.accept;
+        int s = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            s = delta[s << 8 | content[i] & 0xff];
+            if (accept[s]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #matches(byte[], int, int)} for the remaining bytes of a heap or mapped buffer.
+     */
+    boolean matches(ByteBuffer content) {
+        if (content.hasArray()) {
+            return matches(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        }
+        var delta = this.delta;
+        var accept = this.accept;
+        int s = 0;
+        for (int i = content.position(), end = content.limit(); i < end; i++) {
+            s = delta[s << 8 | content.get(i) & 0xff];
+            if (accept[s]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #matches(byte[], int, int)} over the whole array, counting rejected files.
+     */
+    boolean test(byte[] content) {
+        scanned.increment();
+        if (matches(content, 0, content.length)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    boolean test(ByteBuffer content) {
+        scanned.increment();
+        if (matches(content)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    long scanned() {
+        return scanned.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+}
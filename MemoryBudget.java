@@ -0,0 +1,144 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission by estimated heap use, so a few huge files cannot take the heap down.
+ * <p>
+ * The working set of a file is estimated from its length: the bytes read, the decoded text, the piece table
+ * with its rewritten copies, the match results and the output bytes come to a small multiple of it, the
+ * syntax tree of the AST engine to a larger one. A file is read only once its estimate fits into what is
+ * left of the budget, and its share is given back when the file is done. Files that need more than a quarter
+ * of the budget go through a lane of their own, one at a time, so they cannot crowd out all small files at
+ * once; one that needs more than the whole budget waits until it has the budget to itself.
+ * <pre>
+ * long share = memory.admit(size);
+ * try { ... } finally { memory.release(share); }
+ * </pre>
+ * Waiting is first come first served, a large file is not overtaken forever by small ones.
+ */
+final class MemoryBudget {
+
+    /**
+     * Working set per byte of source for the regex engine.
+     */
+    static final int REGEX_FACTOR = 6;
+
+    /**
+     * Working set per byte of source for the AST engine.
+     */
+    static final int AST_FACTOR = 20;
+
+    /**
+     * Working set of a file regardless of its length.
+     */
+    static final long OVERHEAD = 64 * 1024;
+
+    private final long budget;
+    private final int factor;
+    private final Semaphore permits;
+    private final int totalKib;
+    private final Semaphore lane = new Semaphore(1, true);
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAccumulator peak = new LongAccumulator(Math::max, 0);
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * @param budget bytes the working sets of all files in flight may take together, {@code 0} for no limit
+     * @param factor working set per byte of source
+     */
+    MemoryBudget(long budget, int factor) {
+        this.budget = budget;
+        this.factor = factor;
+        this.totalKib = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budget / 1024));
+        this.permits = new Semaphore(totalKib, true);
+    }
+
+    /**
+     * Half of the maximum heap, the rest is for everything else the run keeps.
+     */
+    static long auto() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    long estimate(long size) {
+        return OVERHEAD + factor * size;
+    }
+
+    /**
+     * Blocks until the working set of a file of {@code size} bytes fits.
+     *
+     * @return the share to {@link #release(long)} when the file is done
+     */
+    long admit(long size) {
+        long estimate = estimate(size);
+        if (budget != 0) {
+            if (oversized(estimate)) {
+                oversized.increment();
+                lane.acquireUninterruptibly();
+            }
+            int kib = kib(estimate);
+            try {
+                // unlike tryAcquire(int), this one does not jump the queue
+                if (!permits.tryAcquire(kib, 0, TimeUnit.SECONDS)) {
+                    waited.increment();
+                    permits.acquireUninterruptibly(kib);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                permits.acquireUninterruptibly(kib);
+            }
+        }
+        peak.accumulate(inFlight.addAndGet(estimate));
+        return estimate;
+    }
+
+    void release(long share) {
+        if (share == 0) {
+            return;
+        }
+        inFlight.addAndGet(-share);
+        if (budget != 0) {
+            permits.release(kib(share));
+            if (oversized(share)) {
+                lane.release();
+            }
+        }
+    }
+
+    long budget() {
+        return budget;
+    }
+
+    /**
+     * Most bytes the estimates of the files in flight came to at once.
+     */
+    long peak() {
+        return peak.get();
+    }
+
+    /**
+     * Files that had to wait for the budget.
+     */
+    long waited() {
+        return waited.sum();
+    }
+
+    /**
+     * Files that went through the lane for large ones.
+     */
+    long oversized() {
+        return oversized.sum();
+    }
+
+    private boolean oversized(long estimate) {
+        return estimate > budget / 4;
+    }
+
+    private int kib(long estimate) {
+        return (int) Math.min(totalKib, (estimate + 1023) / 1024);
+    }
+}
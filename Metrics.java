@@ -0,0 +1,307 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Run time instrumentation of the rewrite pipeline.
+ * <p>
+ * Collects time per phase, time and matches per pattern, a log2 histogram of the time spent per file, the
+ * slowest files and the number of times every skip reason came up. The same measurements are emitted as
+ * JFR events, so a recording started with {@code -XX:StartFlightRecording} shows them next to GC and I/O:
+ * <pre>
+ * java -XX:StartFlightRecording=filename=run.jfr -cp out StatementCloser src
+ * jfr print --events 'statementcloser.*' run.jfr
+ * </pre>
+ * Everything is kept in striped counters, recording costs a couple of {@link System#nanoTime()} calls.
+ */
+final class Metrics {
+
+    /**
+     * Phases of the pipeline. {@link #DETECT} and {@link #EXTRACT} are part of {@link #REWRITE}.
+     */
+    enum Phase {
+        WALK,
+        READ,
+        DECODE,
+        REWRITE,
+        DETECT,
+        EXTRACT,
+        VERIFY,
+        WRITE
+    }
+
+    /**
+     * Pattern scans faster than this are only counted, not emitted as events.
+     */
+    static final long SLOW_MATCH = TimeUnit.MICROSECONDS.toNanos(100);
+
+    static final int SLOWEST = 10;
+
+    @Name("statementcloser.File")
+    @Label("File")
+    @Category("StatementCloser")
+    @Description("One file processed by the closer")
+    @StackTrace(false)
+    static final class FileEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Time")
+        @Timespan
+        long time;
+        @Label("Replaced")
+        int replaced;
+        @Label("Skipped")
+        int skipped;
+    }
+
+    @Name("statementcloser.Phase")
+    @Label("Phase")
+    @Category("StatementCloser")
+    @Description("Time spent in one phase of the pipeline")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Time")
+        @Timespan
+        long time;
+    }
+
+    @Name("statementcloser.Match")
+    @Label("Pattern Match")
+    @Category("StatementCloser")
+    @Description("Slow scan of a pattern")
+    static final class MatchEvent extends Event {
+        @Label("Pattern")
+        String pattern;
+        @Label("Matches")
+        int matches;
+        @Label("Time")
+        @Timespan
+        long time;
+    }
+
+    @Name("statementcloser.Skip")
+    @Label("Skip")
+    @Category("StatementCloser")
+    @Description("Declaration left for a manual fix")
+    @StackTrace(false)
+    static final class SkipEvent extends Event {
+        @Label("Reason")
+        String reason;
+    }
+
+    private static final class Counter {
+        final LongAdder nanos = new LongAdder();
+        final LongAdder calls = new LongAdder();
+        final LongAdder matches = new LongAdder();
+    }
+
+    private static final class Slow {
+        final String path;
+        final long nanos;
+
+        Slow(String path, long nanos) {
+            this.path = path;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Counter[] phases = new Counter[Phase.values().length];
+    private static final Map<String, Counter> patterns = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> skips = new ConcurrentHashMap<>();
+    private static final LongAdder[] histogram = new LongAdder[40];
+    private static final PriorityQueue<Slow> slowest = new PriorityQueue<>(Comparator.comparingLong(s -> s.nanos));
+
+    static {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Counter();
+        }
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Forgets everything measured so far, for the next run in the same JVM.
+     */
+    static void reset() {
+        for (var c : phases) {
+            c.nanos.reset();
+            c.calls.reset();
+            c.matches.reset();
+        }
+        patterns.clear();
+        skips.clear();
+        for (var h : histogram) {
+            h.reset();
+        }
+        synchronized (slowest) {
+            slowest.clear();
+        }
+    }
+
+    /**
+     * Time recorded for the phase so far.
+     */
+    static long nanos(Phase phase) {
+        return phases[phase.ordinal()].nanos.sum();
+    }
+
+    /**
+     * Adds the time since {@code start} to the phase.
+     */
+    static void phase(Phase phase, long start) {
+        record(phase, System.nanoTime() - start);
+    }
+
+    static void record(Phase phase, long nanos) {
+        var c = phases[phase.ordinal()];
+        c.nanos.add(nanos);
+        c.calls.increment();
+        var event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name().toLowerCase(Locale.ROOT);
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds a scan of the named pattern that started at {@code start} and found {@code matches} matches.
+     */
+    static void pattern(String name, long start, int matches) {
+        long nanos = System.nanoTime() - start;
+        var c = patterns.computeIfAbsent(name, k -> new Counter());
+        c.nanos.add(nanos);
+        c.calls.increment();
+        c.matches.add(matches);
+        if (nanos >= SLOW_MATCH) {
+            var event = new MatchEvent();
+            if (event.isEnabled()) {
+                event.pattern = name;
+                event.matches = matches;
+                event.time = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Counts a skip reason by its first line, the rest usually quotes the skipped source.
+     */
+    static void skip(String reason) {
+        if (reason == null) {
+            reason = "unknown";
+        }
+        int eol = reason.indexOf('\n');
+        var key = eol < 0 ? reason : reason.substring(0, eol);
+        skips.computeIfAbsent(key, k -> new LongAdder()).increment();
+        var event = new SkipEvent();
+        if (event.isEnabled()) {
+            event.reason = key;
+            event.commit();
+        }
+    }
+
+    static void file(String path, long size, long start, int replaced, int skipped) {
+        long nanos = System.nanoTime() - start;
+        histogram[Math.min(63 - Long.numberOfLeadingZeros(Math.max(nanos / 1000, 1)), histogram.length - 1)].increment();
+        synchronized (slowest) {
+            if (slowest.size() < SLOWEST) {
+                slowest.add(new Slow(path, nanos));
+            } else if (slowest.peek().nanos < nanos) {
+                slowest.poll();
+                slowest.add(new Slow(path, nanos));
+            }
+        }
+        var event = new FileEvent();
+        if (event.isEnabled()) {
+            event.path = path;
+            event.size = size;
+            event.time = nanos;
+            event.replaced = replaced;
+            event.skipped = skipped;
+            event.commit();
+        }
+    }
+
+    static void print(PrintStream out) {
+        out.println();
+        out.printf("%-24s %12s %10s %12s%n", "Phase", "total ms", "count", "mean us");
+        for (var p : Phase.values()) {
+            var c = phases[p.ordinal()];
+            long calls = c.calls.sum();
+            if (calls != 0) {
+                out.printf("%-24s %12.1f %10d %12.1f%n", p.name().toLowerCase(Locale.ROOT), c.nanos.sum() / 1e6, calls, c.nanos.sum() / 1e3 / calls);
+            }
+        }
+        out.println();
+        out.printf("%-24s %12s %10s %12s%n", "Pattern", "total ms", "scans", "matches");
+        new TreeMap<>(patterns).forEach((name, c) -> out.printf(
+                "%-24s %12.1f %10d %12d%n", name, c.nanos.sum() / 1e6, c.calls.sum(), c.matches.sum()
+        ));
+        out.println();
+        out.println("Time per file");
+        int first = histogram.length;
+        int last = -1;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i].sum() != 0) {
+                first = Math.min(first, i);
+                last = i;
+            }
+        }
+        for (int i = first; i <= last; i++) {
+            out.printf("  < %-10s %10d%n", micros(1L << (i + 1)), histogram[i].sum());
+        }
+        out.println();
+        out.println("Slowest files");
+        var slow = new ArrayList<Slow>();
+        synchronized (slowest) {
+            slow.addAll(slowest);
+        }
+        slow.sort(Comparator.comparingLong((Slow s) -> s.nanos).reversed());
+        for (var s : slow) {
+            out.printf("  %10.1f ms  %s%n", s.nanos / 1e6, s.path);
+        }
+        if (!skips.isEmpty()) {
+            out.println();
+            out.println("Skip reasons");
+            var sorted = new ArrayList<>(skips.entrySet());
+            sorted.sort(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed());
+            for (var e : sorted) {
+                out.printf("  %10d  %s%n", e.getValue().sum(), e.getKey());
+            }
+        }
+    }
+
+    private static String micros(long micros) {
+        if (micros < 1000) {
+            return micros + " us";
+        } else if (micros < 1_000_000) {
+            return String.format("%.1f ms", micros / 1e3);
+        }
+        return String.format("%.1f s", micros / 1e6);
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+
+/**
+ * Editable view over an immutable source text.
+ * <p>
+ * Edits never copy the document, they only split the piece list and append the new text to a side buffer.
+ * The table is a {@link CharSequence} so patterns can keep matching on the edited text, and the final
+ * string is built once with {@link #toString()}.
+ */
+final class PieceTable implements CharSequence {
+
+    private final String original;
+    private final StringBuilder added = new StringBuilder();
+
+    private int[] offset = new int[16];
+    private int[] size = new int[16];
+    private int[] position = new int[16];
+    private boolean[] fromAdded = new boolean[16];
+    private int pieces;
+    private int length;
+    private int last;
+
+    PieceTable(String original) {
+        this.original = original;
+        this.length = original.length();
+        if (length != 0) {
+            size[0] = length;
+            pieces = 1;
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        int p = last;
+        if (index < position[p] || index >= position[p] + size[p]) {
+            p = locate(index);
+            last = p;
+        }
+        int at = offset[p] + index - position[p];
+        return fromAdded[p] ? added.charAt(at) : original.charAt(at);
+    }
+
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        var sb = new StringBuilder(end - start);
+        appendTo(sb, start, end);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder(length);
+        appendTo(sb, 0, length);
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the range {@code [start, end)} with the given text.
+     */
+    void replace(int start, int end, CharSequence text) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        int from = split(start);
+        int to = split(end);
+        int removed = to - from;
+        int insert = text.length() != 0 ? 1 : 0;
+        ensureCapacity(pieces - removed + insert);
+        int tail = pieces - to;
+        System.arraycopy(offset, to, offset, from + insert, tail);
+        System.arraycopy(size, to, size, from + insert, tail);
+        System.arraycopy(fromAdded, to, fromAdded, from + insert, tail);
+        if (insert != 0) {
+            offset[from] = added.length();
+            size[from] = text.length();
+            fromAdded[from] = true;
+            added.append(text);
+        }
+        pieces = pieces - removed + insert;
+        length += text.length() - (end - start);
+        reposition(from);
+    }
+
+    void insert(int at, CharSequence text) {
+        replace(at, at, text);
+    }
+
+    /**
+     * Offset in the original text that {@code index} comes from, for inserted text the original offset it was
+     * inserted at.
+     */
+    int originalOffset(int index) {
+        int p = index >= length ? pieces : locate(index);
+        if (p < pieces && !fromAdded[p]) {
+            return offset[p] + index - position[p];
+        }
+        for (int q = p - 1; q >= 0; q--) {
+            if (!fromAdded[q]) {
+                return offset[q] + size[q];
+            }
+        }
+        return 0;
+    }
+
+    private void appendTo(StringBuilder sb, int start, int end) {
+        if (start == end) {
+            return;
+        }
+        for (int p = locate(start); p < pieces && position[p] < end; p++) {
+            int from = offset[p] + Math.max(start - position[p], 0);
+            int to = offset[p] + Math.min(end - position[p], size[p]);
+            sb.append(fromAdded[p] ? added : original, from, to);
+        }
+    }
+
+    /**
+     * Makes {@code at} a piece boundary and returns the index of the piece starting there.
+     */
+    private int split(int at) {
+        if (at == length) {
+            return pieces;
+        }
+        int p = locate(at);
+        int k = at - position[p];
+        if (k == 0) {
+            return p;
+        }
+        ensureCapacity(pieces + 1);
+        int tail = pieces - p - 1;
+        System.arraycopy(offset, p + 1, offset, p + 2, tail);
+        System.arraycopy(size, p + 1, size, p + 2, tail);
+        System.arraycopy(fromAdded, p + 1, fromAdded, p + 2, tail);
+        System.arraycopy(position, p + 1, position, p + 2, tail);
+        offset[p + 1] = offset[p] + k;
+        size[p + 1] = size[p] - k;
+        fromAdded[p + 1] = fromAdded[p];
+        position[p + 1] = at;
+        size[p] = k;
+        pieces++;
+        return p + 1;
+    }
+
+    private int locate(int index) {
+        int lo = 0;
+        int hi = pieces - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (position[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void reposition(int from) {
+        int at = from == 0 ? 0 : position[from - 1] + size[from - 1];
+        for (int p = from; p < pieces; p++) {
+            position[p] = at;
+            at += size[p];
+        }
+        last = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > offset.length) {
+            int grown = Math.max(capacity, offset.length * 2);
+            offset = Arrays.copyOf(offset, grown);
+            size = Arrays.copyOf(size, grown);
+            position = Arrays.copyOf(position, grown);
+            fromAdded = Arrays.copyOf(fromAdded, grown);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects per file reports from the workers and renders them on a single consumer thread.
+ * <p>
+ * Workers fill a {@link FileReport} on their own and hand it over through a lock free queue, so nothing on
+ * the hot path waits for the console or another worker. The consumer renders the reports as the familiar
+ * text log, as JSON lines or as a streamed SARIF log.
+ */
+final class Reporter implements AutoCloseable {
+
+    enum Format {
+        TEXT,
+        JSONL,
+        SARIF
+    }
+
+    static final class Finding {
+        final String rule;
+        final int line;
+        final String message;
+
+        Finding(String rule, int line, String message) {
+            this.rule = rule;
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Everything one worker found out about one file.
+     */
+    static final class FileReport {
+        final String path;
+        final Map<String, Integer> found = new LinkedHashMap<>();
+        final Map<String, Integer> replaced = new LinkedHashMap<>();
+        final List<Finding> findings = new ArrayList<>();
+        final StringBuilder log = new StringBuilder();
+        final StringBuilder errors = new StringBuilder();
+        boolean rewritten;
+        String diff;
+
+        FileReport(String path) {
+            this.path = path;
+        }
+
+        void info(Object s) {
+            log.append(s).append('\n');
+        }
+
+        void warn(Object s) {
+            errors.append(s).append('\n');
+        }
+
+        void warn(Throwable e) {
+            var trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            errors.append(trace);
+        }
+
+        void found(String kind, int count) {
+            found.merge(kind, count, Integer::sum);
+        }
+
+        void replaced(String kind, int count) {
+            replaced.merge(kind, count, Integer::sum);
+        }
+
+        void finding(String rule, int line, String message) {
+            findings.add(new Finding(rule, line, message));
+        }
+
+        /**
+         * Messages of everything that still needs a manual look.
+         */
+        List<String> skipReasons() {
+            var reasons = new ArrayList<String>();
+            for (var f : findings) {
+                if (!f.rule.equals("rewritten")) {
+                    reasons.add(f.message);
+                }
+            }
+            return reasons;
+        }
+
+        boolean isEmpty() {
+            return found.isEmpty() && findings.isEmpty() && log.length() == 0 && errors.length() == 0 && diff == null;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<FileReport> queue = new ConcurrentLinkedQueue<>();
+    private final Map<String, Object> summary = new LinkedHashMap<>();
+    private final Format format;
+    private final Path file;
+    private final Writer out;
+    private final PrintStream console;
+    private final PrintStream consoleErr;
+    private final Thread consumer;
+    private volatile boolean closed;
+    private volatile boolean waiting;
+    private boolean first = true;
+
+    /**
+     * @param file destination of the rendered reports, {@code null} for the console
+     */
+    Reporter(Format format, Path file) throws IOException {
+        this.format = format;
+        this.file = file;
+        this.console = System.out;
+        this.consoleErr = System.err;
+        this.out = file != null
+                ? Files.newBufferedWriter(file, StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        this.consumer = new Thread(this::consume, "reporter");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    void publish(FileReport report) {
+        if (report.isEmpty()) {
+            return;
+        }
+        queue.offer(report);
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Adds a value to the summary rendered once all reports are done.
+     */
+    void summary(String name, Object value) {
+        synchronized (summary) {
+            summary.put(name, value);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+
+    private void consume() {
+        try {
+            begin();
+            while (true) {
+                var report = queue.poll();
+                if (report != null) {
+                    render(report);
+                    continue;
+                }
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                out.flush();
+                waiting = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(50));
+                }
+                waiting = false;
+            }
+            end();
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void begin() throws IOException {
+        if (format == Format.SARIF) {
+            out.write("{\"version\":\"2.1.0\",\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"runs\":[{");
+            out.write("\"tool\":{\"driver\":{\"name\":\"StatementCloser\",\"version\":" + json(StatementCloser.VERSION) + ",\"rules\":[");
+            out.write("{\"id\":\"unclosed-resource\",\"shortDescription\":{\"text\":\"Statement or ResultSet that is possibly never closed\"}},");
+            out.write("{\"id\":\"rewritten\",\"shortDescription\":{\"text\":\"Declaration rewritten into try-with-resources\"}},");
+            out.write("{\"id\":\"skipped\",\"shortDescription\":{\"text\":\"Declaration that needs a manual fix\"}},");
+            out.write("{\"id\":\"unverified\",\"shortDescription\":{\"text\":\"Generated variable that is never used after the rewrite\"}},");
+            out.write("{\"id\":\"failed\",\"shortDescription\":{\"text\":\"File that could not be processed\"}}");
+            out.write("]}},\"results\":[\n");
+        }
+    }
+
+    private void render(FileReport r) throws IOException {
+        switch (format) {
+            case TEXT:
+                var logs = r.log.toString().trim();
+                if (!logs.isBlank()) {
+                    text(console, "\n");
+                    text(console, "Log:");
+                    text(console, logs);
+                }
+                var errors = r.errors.toString().trim();
+                if (!errors.isBlank() && errors.indexOf('\n') != errors.lastIndexOf('\n')) {
+                    text(consoleErr, "\n");
+                    text(consoleErr, "Error:");
+                    text(consoleErr, errors);
+                }
+                if (r.diff != null && !r.diff.isEmpty()) {
+                    text(console, r.diff.substring(0, r.diff.length() - 1));
+                }
+                break;
+            case JSONL:
+                out.write("{\"type\":\"file\",\"path\":" + json(r.path));
+                out.write(",\"found\":" + json(r.found));
+                out.write(",\"replaced\":" + json(r.replaced));
+                out.write(",\"rewritten\":" + r.rewritten);
+                if (r.diff != null) {
+                    out.write(",\"diff\":" + json(r.diff));
+                }
+                out.write(",\"findings\":[");
+                for (int i = 0; i < r.findings.size(); i++) {
+                    var f = r.findings.get(i);
+                    out.write((i == 0 ? "" : ",")
+                            + "{\"rule\":" + json(f.rule)
+                            + ",\"line\":" + f.line
+                            + ",\"message\":" + json(f.message) + "}");
+                }
+                out.write("]}\n");
+                break;
+            case SARIF:
+                for (var f : r.findings) {
+                    out.write(first ? "" : ",\n");
+                    first = false;
+                    out.write("{\"ruleId\":" + json(f.rule)
+                            + ",\"level\":" + json(f.rule.equals("rewritten") ? "note" : "warning")
+                            + ",\"message\":{\"text\":" + json(f.message) + "}"
+                            + ",\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":" + json(uri(r.path)) + "}"
+                            + (f.line > 0 ? ",\"region\":{\"startLine\":" + f.line + "}" : "")
+                            + "}}]}");
+                }
+                break;
+        }
+    }
+
+    private void end() throws IOException {
+        Map<String, Object> values;
+        synchronized (summary) {
+            values = new LinkedHashMap<>(summary);
+        }
+        switch (format) {
+            case TEXT:
+                if (!values.isEmpty()) {
+                    text(console, "\n");
+                    text(console, "Log:");
+                    for (var e : values.entrySet()) {
+                        text(console, e.getKey() + ": " + e.getValue());
+                    }
+                }
+                break;
+            case JSONL:
+                out.write("{\"type\":\"summary\",\"values\":" + json(values) + "}\n");
+                break;
+            case SARIF:
+                out.write("\n],\"properties\":{\"summary\":" + json(values) + "}}]}\n");
+                break;
+        }
+    }
+
+    /**
+     * Text goes to the console it was meant for or, with a report file, all of it to the file.
+     */
+    private void text(PrintStream stream, String line) throws IOException {
+        if (file != null) {
+            out.write(line);
+            out.write('\n');
+        } else {
+            stream.println(line);
+        }
+    }
+
+    /**
+     * Absolute paths become {@code file} URIs, relative ones relative references, both percent-encoded.
+     */
+    private static String uri(String path) {
+        var s = path.replace('\\', '/');
+        var sb = new StringBuilder();
+        if (s.length() > 2 && s.charAt(1) == ':' && s.charAt(2) == '/') {
+            sb.append("file:///").append(s, 0, 2);
+            s = s.substring(2);
+        } else if (s.startsWith("/")) {
+            sb.append("file://");
+        }
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || "/-._~".indexOf(b) >= 0) {
+                sb.append((char) b);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(b >> 4 & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    static String json(Map<String, ?> values) {
+        var sb = new StringBuilder("{");
+        values.forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(json(k)).append(':').append(v instanceof Number || v instanceof Boolean ? v.toString() : json(String.valueOf(v)));
+        });
+        return sb.append('}').toString();
+    }
+
+    static String json(String s) {
+        var sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.List;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * A kind of closeable resource the rewrite looks for, e.g. {@code ResultSet}.
+ * <p>
+ * A rule knows the type names that declare it, the shape of a declaration line, how to turn the matched
+ * declaration into a try resource and when the resource escapes its block. The engine does not scan for
+ * every rule separately: one pass finds declaration lines of any type, and the declared type picks the rule,
+ * so an extra rule costs a type name check per declaration instead of another pass over the file.
+ * The AST engine only asks {@link #declares(String)} and does its own escape analysis on the syntax tree.
+ */
+interface ResourceRule {
+
+    /**
+     * Kind in reports and summaries, also the name for {@code --rules}.
+     */
+    String type();
+
+    /**
+     * Whether a declared type name, with or without its package, is of this kind.
+     */
+    boolean declares(String typeName);
+
+    /**
+     * Type names that have to appear in a file for this rule to find anything.
+     */
+    List<String> literals();
+
+    /**
+     * Matches a whole declaration from the start of its line, group {@code 1} is the type and {@code 2} the name.
+     */
+    Pattern declaration();
+
+    /**
+     * Name of the declaration pattern in metrics and timeouts.
+     */
+    String patternName();
+
+    /**
+     * The resource part of the try statement, {@code var name = initializer}, out of the declaration head.
+     *
+     * @throws IllegalStateException when the declaration cannot be taken apart
+     */
+    String tryStatement(String head);
+
+    /**
+     * Checks the rest of the block for uses that outlive it.
+     *
+     * @throws IllegalStateException when the resource is handed out of the block
+     */
+    default void escapes(String name, String scope) {
+        if (scope.contains("return " + name + ";") || scope.contains("return " + name + ".exe")) {
+            throw new IllegalStateException("Detected a return statement -> skipping");
+        }
+    }
+
+    /**
+     * Whether declarations are rewritten, otherwise they are only reported.
+     */
+    default boolean closes() {
+        return true;
+    }
+
+    /**
+     * A resource declared with a type name matching a pattern and initialized by a single expression.
+     */
+    final class Declared implements ResourceRule {
+        private final String type;
+        private final Pattern typeName;
+        private final List<String> literals;
+        private final Pattern declaration;
+        private final String patternName;
+        private final UnaryOperator<String> tryStatement;
+        private final boolean closes;
+
+        /**
+         * @param typeName     type names of the kind, with or without their package
+         * @param literals     words every declaration contains
+         * @param declaration  see {@link #declaration()}
+         * @param tryStatement see {@link #tryStatement(String)}
+         */
+        Declared(
+                String type,
+                String typeName,
+                List<String> literals,
+                Pattern declaration,
+                String patternName,
+                UnaryOperator<String> tryStatement,
+                boolean closes
+        ) {
+            this.type = type;
+            this.typeName = Pattern.compile(typeName);
+            this.literals = literals;
+            this.declaration = declaration;
+            this.patternName = patternName;
+            this.tryStatement = tryStatement;
+            this.closes = closes;
+        }
+
+        /**
+         * Rule whose try resource is the initializer as written.
+         */
+        static Declared of(String type, String typeName, boolean closes, String... literals) {
+            var declaration = Pattern.compile("(?m)^\\s*(" + typeName + ")\\s+([\\w\\d]+)\\s*=\\s*[^;]+?(?<!null);");
+            var init = Pattern.compile("(?m)^\\s*" + typeName + "\\s+[^=]+=\\s*([^;]+?)(?<!null);");
+            return new Declared(
+                    type,
+                    typeName,
+                    List.of(literals),
+                    declaration,
+                    type.substring(0, 1).toLowerCase(Locale.ROOT) + type.substring(1) + "Pattern",
+                    head -> initializer(type, declaration, init, head),
+                    closes
+            );
+        }
+
+        private static String initializer(String type, Pattern declaration, Pattern init, String head) {
+            var name = declaration.matcher(head);
+            var value = init.matcher(head);
+            if (!name.find() || !value.find()) {
+                throw new IllegalStateException("Failed to match " + type + " -> skipping\n" + head);
+            }
+            return String.format("var %s = %s", name.group(2), value.group(1));
+        }
+
+        @Override
+        public String type() {
+            return type;
+        }
+
+        @Override
+        public boolean declares(String typeName) {
+            return this.typeName.matcher(typeName).matches();
+        }
+
+        @Override
+        public List<String> literals() {
+            return literals;
+        }
+
+        @Override
+        public Pattern declaration() {
+            return declaration;
+        }
+
+        @Override
+        public String patternName() {
+            return patternName;
+        }
+
+        @Override
+        public String tryStatement(String head) {
+            return tryStatement.apply(head);
+        }
+
+        @Override
+        public boolean closes() {
+            return closes;
+        }
+
+        @Override
+        public String toString() {
+            return type;
+        }
+    }
+}
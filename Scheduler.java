@@ -0,0 +1,183 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the stages of the per file work on executors that fit them.
+ * <p>
+ * Reads and writes run on virtual threads where the runtime has them (Java 21 and later) and on a pool of
+ * platform threads otherwise, their number in flight is bounded separately for reads and for writes. The
+ * CPU heavy stages run on a fixed number of platform threads fed by a bounded queue. Every hand-off blocks
+ * while the next stage is saturated, so a slow stage throttles the ones before it instead of letting work
+ * pile up in memory.
+ * <pre>
+ * read (I/O) -> queue -> rewrite (CPU) -> write (I/O)
+ * </pre>
+ * Reads wait for rewrites and rewrites wait for writes but never the other way round, so the stages cannot
+ * deadlock on each other's slots.
+ */
+final class Scheduler implements AutoCloseable {
+
+    private static final Runnable STOP = () -> {
+    };
+
+    private final ExecutorService io;
+    private final Semaphore reads;
+    private final Semaphore writes;
+    private final BlockingQueue<Runnable> queue;
+    private final Thread[] workers;
+    private final Phaser pending = new Phaser(1);
+
+    /**
+     * @param threads   platform threads for the CPU stages
+     * @param ioThreads reads and writes each in flight at most
+     */
+    Scheduler(int threads, int ioThreads) {
+        this.io = ioExecutor(ioThreads);
+        this.reads = new Semaphore(ioThreads);
+        this.writes = new Semaphore(ioThreads);
+        this.queue = new ArrayBlockingQueue<>(2 * threads);
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "rewrite-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Whether reads and writes run on virtual threads.
+     */
+    boolean virtual() {
+        return !(io instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * Starts a read, blocks while all read slots are taken.
+     */
+    void read(Runnable task) {
+        submit(reads, task);
+    }
+
+    /**
+     * Starts a write, blocks while all write slots are taken.
+     */
+    void write(Runnable task) {
+        submit(writes, task);
+    }
+
+    /**
+     * Queues CPU bound work, blocks while the queue is full.
+     */
+    void cpu(Runnable task) throws InterruptedException {
+        pending.register();
+        try {
+            queue.put(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pending.arriveAndDeregister();
+                }
+            });
+        } catch (InterruptedException e) {
+            pending.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until all submitted work, including the work it submitted in turn, is done.
+     */
+    void await() {
+        pending.arriveAndAwaitAdvance();
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < workers.length; i++) {
+                queue.put(STOP);
+            }
+            for (var w : workers) {
+                w.join();
+            }
+            io.shutdown();
+            io.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(Semaphore slots, Runnable task) {
+        slots.acquireUninterruptibly();
+        pending.register();
+        try {
+            io.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    slots.release();
+                    pending.arriveAndDeregister();
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            pending.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    private void work() {
+        try {
+            Runnable task;
+            while ((task = queue.take()) != STOP) {
+                try {
+                    task.run();
+                } catch (RuntimeException | Error e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    private static final ThreadFactory VIRTUAL = virtualThreads();
+
+    /**
+     * Factory for virtual threads looked up reflectively, so the tool still builds and runs on Java 17.
+     */
+    private static ThreadFactory virtualThreads() {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            var type = Class.forName("java.lang.Thread$Builder");
+            builder = type.getMethod("name", String.class, long.class).invoke(builder, "io-", 0L);
+            return (ThreadFactory) type.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService ioExecutor(int ioThreads) {
+        if (VIRTUAL != null) {
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, VIRTUAL);
+            } catch (ReflectiveOperationException | RuntimeException ignore) {
+            }
+        }
+        var count = new AtomicInteger();
+        return Executors.newFixedThreadPool(ioThreads, r -> {
+            var t = new Thread(r, "io-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
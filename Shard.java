@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * One of {@code N} disjoint parts of the file set, so a scan can be split over several JVMs or machines.
+ * <p>
+ * By default a file belongs to the shard its path relative to the root hashes to, which needs no
+ * coordination and stays stable while other shards rewrite files. The balanced mode lists the whole tree
+ * first and deals the files out largest first to the shard with the least bytes so far; every shard has to
+ * see the same sizes, so it is meant for separate checkouts or dry runs.
+ * <pre>
+ * java -cp out StatementCloser src --shard 1/2 --report jsonl --report-file shard-1.jsonl &amp;
+ * java -cp out StatementCloser src --shard 2/2 --report jsonl --report-file shard-2.jsonl
+ * java -cp out StatementCloser --merge shard-1.jsonl shard-2.jsonl
+ * </pre>
+ * Generated variable numbers are interleaved between the shards, so they never collide.
+ */
+final class Shard {
+
+    static final Shard ALL = new Shard(1, 1, false);
+
+    private static final Pattern FRACTION = Pattern.compile("(\\d+)/(\\d+)");
+
+    /**
+     * One based.
+     */
+    final int index;
+    final int count;
+    final boolean balanced;
+
+    private Shard(int index, int count, boolean balanced) {
+        this.index = index;
+        this.count = count;
+        this.balanced = balanced;
+    }
+
+    /**
+     * @param spec {@code i/N}
+     */
+    static Shard parse(String spec, boolean balanced) {
+        var m = FRACTION.matcher(spec);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Shard is not i/N: " + spec);
+        }
+        int index = Integer.parseInt(m.group(1));
+        int count = Integer.parseInt(m.group(2));
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Shard out of range: " + spec);
+        }
+        return new Shard(index, count, balanced);
+    }
+
+    /**
+     * Path relative to the root with forward slashes, the same on every machine and checkout location.
+     */
+    static String key(Path root, Path f) {
+        var p = root != null && f.startsWith(root) && !f.equals(root) ? root.relativize(f) : f;
+        return p.toString().replace('\\', '/');
+    }
+
+    boolean owns(Path root, Path f) {
+        return count == 1 || Long.remainderUnsigned(IncrementalCache.key(key(root, f)), count) == index - 1;
+    }
+
+    /**
+     * Files of this shard out of all files, dealt out largest first to the least loaded shard.
+     */
+    List<Path> balance(Path root, List<Path> files) throws IOException {
+        var sized = new ArrayList<Map.Entry<String, Long>>(files.size());
+        var byKey = new LinkedHashMap<String, Path>();
+        for (var f : files) {
+            var key = key(root, f);
+            byKey.put(key, f);
+            sized.add(Map.entry(key, Files.size(f)));
+        }
+        sized.sort(Comparator.comparing((Map.Entry<String, Long> e) -> e.getValue()).reversed().thenComparing(Map.Entry::getKey));
+        var load = new long[count];
+        var owned = new ArrayList<Path>();
+        for (var e : sized) {
+            int least = 0;
+            for (int i = 1; i < count; i++) {
+                if (load[i] < load[least]) {
+                    least = i;
+                }
+            }
+            load[least] += Math.max(e.getValue(), 1);
+            if (least == index - 1) {
+                owned.add(byKey.get(e.getKey()));
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * The {@code k}th generated number of this shard, numbers of different shards interleave.
+     */
+    int id(int k) {
+        return (k - 1) * count + index;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+
+    /**
+     * Combines the JSONL reports of several runs into one report with one summary.
+     * <p>
+     * Files are reported in path order, summary values are added up and peaks keep the highest. Reports of
+     * shards check that every shard is there and that each run finished.
+     *
+     * @return exit code, {@code 200} when a run failed on a file, is missing or did not finish
+     */
+    static int merge(List<Path> inputs, Reporter.Format format, Path reportFile) throws IOException {
+        var files = new ArrayList<Reporter.FileReport>();
+        var summary = new LinkedHashMap<String, Object>();
+        var shards = new TreeSet<Integer>();
+        var problems = new ArrayList<String>();
+        int expected = 0;
+        for (var input : inputs) {
+            boolean finished = false;
+            int n = 0;
+            for (var line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+                n++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                Map<?, ?> o;
+                try {
+                    o = (Map<?, ?>) Json.parse(line);
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Not a JSONL report: " + input + ":" + n, e);
+                }
+                if ("file".equals(o.get("type"))) {
+                    files.add(report(o));
+                } else if ("summary".equals(o.get("type"))) {
+                    finished = true;
+                    for (var e : ((Map<?, ?>) o.get("values")).entrySet()) {
+                        var name = (String) e.getKey();
+                        if (name.equals("Shard")) {
+                            var shard = parse(String.valueOf(e.getValue()), false);
+                            if (expected != 0 && expected != shard.count) {
+                                problems.add("Shard " + shard + " of a different split in " + input);
+                            }
+                            expected = shard.count;
+                            if (!shards.add(shard.index)) {
+                                problems.add("Shard " + shard + " twice, again in " + input);
+                            }
+                        } else if (name.startsWith("Peak ")) {
+                            // every run has a heap of its own, peaks of different runs never add up
+                            summary.merge(name, e.getValue(), Shard::max);
+                        } else {
+                            summary.merge(name, e.getValue(), Shard::add);
+                        }
+                    }
+                }
+            }
+            if (!finished) {
+                problems.add("No summary, the run did not finish: " + input);
+            }
+        }
+        for (int i = 1; i <= expected; i++) {
+            if (!shards.contains(i)) {
+                problems.add("Missing shard " + i + "/" + expected);
+            }
+        }
+        files.sort(Comparator.comparing(r -> r.path));
+        try (var out = new Reporter(format, reportFile)) {
+            files.forEach(out::publish);
+            if (expected != 0) {
+                out.summary("Shards", shards.size() + "/" + expected);
+            }
+            summary.forEach(out::summary);
+        }
+        problems.forEach(System.err::println);
+        return problems.isEmpty() && !summary.containsKey("Failed") ? 0 : 200;
+    }
+
+    private static Reporter.FileReport report(Map<?, ?> o) {
+        var r = new Reporter.FileReport((String) o.get("path"));
+        ((Map<?, ?>) o.get("found")).forEach((k, v) -> r.found((String) k, ((Number) v).intValue()));
+        ((Map<?, ?>) o.get("replaced")).forEach((k, v) -> r.replaced((String) k, ((Number) v).intValue()));
+        r.rewritten = Boolean.TRUE.equals(o.get("rewritten"));
+        r.diff = (String) o.get("diff");
+        for (var f : (List<?>) o.get("findings")) {
+            var finding = (Map<?, ?>) f;
+            r.finding((String) finding.get("rule"), ((Number) finding.get("line")).intValue(), (String) finding.get("message"));
+        }
+        // the text log is not part of the JSONL report, list what still needs a look instead
+        var reasons = r.skipReasons();
+        if (!reasons.isEmpty()) {
+            r.warn(r.path);
+            reasons.forEach(r::warn);
+        }
+        return r;
+    }
+
+    /**
+     * Counts are added, {@code a/b} fractions are added part by part, anything else keeps the last value.
+     */
+    private static Object add(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        }
+        var x = FRACTION.matcher(String.valueOf(a));
+        var y = FRACTION.matcher(String.valueOf(b));
+        if (x.matches() && y.matches()) {
+            return (Long.parseLong(x.group(1)) + Long.parseLong(y.group(1)))
+                    + "/" + (Long.parseLong(x.group(2)) + Long.parseLong(y.group(2)));
+        }
+        return b;
+    }
+
+    private static Object max(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Math.max(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        return b;
+    }
+
+    /**
+     * Just enough of a JSON reader for the reports written by {@link Reporter}.
+     */
+    private static final class Json {
+        private final String s;
+        private int i;
+
+        private Json(String s) {
+            this.s = s;
+        }
+
+        static Object parse(String s) {
+            var json = new Json(s);
+            var value = json.value();
+            json.space();
+            if (json.i != s.length()) {
+                throw json.error();
+            }
+            return value;
+        }
+
+        private Object value() {
+            space();
+            if (i >= s.length()) {
+                throw error();
+            }
+            char c = s.charAt(i);
+            switch (c) {
+                case '{':
+                    var map = new LinkedHashMap<String, Object>();
+                    i++;
+                    space();
+                    if (peek('}')) {
+                        return map;
+                    }
+                    do {
+                        space();
+                        var key = string();
+                        space();
+                        expect(':');
+                        map.put(key, value());
+                        space();
+                    } while (peek(','));
+                    expect('}');
+                    return map;
+                case '[':
+                    var list = new ArrayList<>();
+                    i++;
+                    space();
+                    if (peek(']')) {
+                        return list;
+                    }
+                    do {
+                        list.add(value());
+                        space();
+                    } while (peek(','));
+                    expect(']');
+                    return list;
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default:
+                    int start = i;
+                    while (i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0) {
+                        i++;
+                    }
+                    if (start == i) {
+                        throw error();
+                    }
+                    var number = s.substring(start, i);
+                    return number.matches("-?\\d+") ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+            }
+        }
+
+        private String string() {
+            expect('"');
+            var sb = new StringBuilder();
+            while (true) {
+                if (i >= s.length()) {
+                    throw error();
+                }
+                char c = s.charAt(i++);
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        sb.append(e);
+                }
+            }
+        }
+
+        private Object literal(String word, Object value) {
+            if (!s.startsWith(word, i)) {
+                throw error();
+            }
+            i += word.length();
+            return value;
+        }
+
+        private boolean peek(char c) {
+            if (i < s.length() && s.charAt(i) == c) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!peek(c)) {
+                throw error();
+            }
+        }
+
+        private void space() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("Malformed JSON at " + i);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes source files.
+ * <p>
+ * Large files are read through a read only memory mapping so the prefilter and the hash run over the
+ * page cache without a copy, small files are cheaper to read into the heap. A file is decoded only when it
+ * is actually processed. Writes go to a temporary file next to the target that is then moved over it, so
+ * a crash or an exit in the middle of a write leaves either the old or the new content, never a truncated
+ * file.
+ */
+final class SourceIO {
+
+    /**
+     * Files of at least this size are mapped instead of read.
+     */
+    static final long MAP_THRESHOLD = 64 * 1024;
+
+    private SourceIO() {
+    }
+
+    static ByteBuffer read(Path f, long size) throws IOException {
+        if (size < MAP_THRESHOLD) {
+            return ByteBuffer.wrap(Files.readAllBytes(f));
+        }
+        try (var channel = FileChannel.open(f, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Strict UTF-8 decoding, malformed input fails instead of being replaced.
+     */
+    static String decode(ByteBuffer content) throws IOException {
+        return StandardCharsets.UTF_8.newDecoder().decode(content.duplicate()).toString();
+    }
+
+    /**
+     * Replaces the content of {@code f} unless it already is {@code content}.
+     * <p>
+     * The new content is written to a temporary file in the same directory, gets the permissions of the
+     * original and is moved over it atomically where the file system supports it. Symbolic links are
+     * resolved first, so the link stays and its target is replaced.
+     *
+     * @param current content the file was read with
+     * @return whether the file was written
+     */
+    static boolean write(Path f, ByteBuffer current, byte[] content) throws IOException {
+        if (current.duplicate().clear().equals(ByteBuffer.wrap(content))) {
+            return false;
+        }
+        var target = f.toRealPath();
+        var tmp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            Files.write(tmp, content, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+            } catch (UnsupportedOperationException ignore) {
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return true;
+    }
+}
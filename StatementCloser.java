@@ -1,16 +1,22 @@
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -19,116 +25,297 @@ class StatementCloser {
 
     static class STORE {
         static String PATH;
-        static String FILE_TYPE = ".java";
-        static Pattern filePattern = Pattern.compile(".*" + FILE_TYPE);
+        static String FILE_TYPE;
+        static Pattern filePattern;
+        static List<String> excludes;
+        static boolean followLinks;
+        static Path cache;
+        static Reporter.Format report;
+        static Path reportFile;
+        static String verify;
+        static boolean dryRun;
+        static boolean diff;
+        static int threads;
+        static int ioThreads;
+        static boolean metrics;
+        static Shard shard;
+        static List<Path> merge;
+        static String since;
+        static boolean changedLines;
+        static String engine;
+        static List<ResourceRule> rules;
+        /**
+         * Bytes for the working sets of the files in flight, {@code 0} for no limit, negative for half the heap.
+         */
+        static long heapBudget;
+        static boolean watch;
+        /**
+         * Directory relative paths are resolved against, {@code null} for the working directory of the JVM.
+         */
+        static Path cwd;
+
+        static {
+            reset();
+        }
+
+        static void reset() {
+            PATH = null;
+            FILE_TYPE = ".java";
+            filePattern = Pattern.compile(".*" + FILE_TYPE);
+            excludes = new ArrayList<>();
+            followLinks = true;
+            cache = null;
+            report = Reporter.Format.TEXT;
+            reportFile = null;
+            verify = null;
+            dryRun = false;
+            diff = false;
+            threads = Runtime.getRuntime().availableProcessors();
+            ioThreads = Math.max(16, 4 * threads);
+            metrics = false;
+            shard = Shard.ALL;
+            merge = new ArrayList<>();
+            since = null;
+            changedLines = false;
+            engine = "regex";
+            rules = DEFAULT_RULES;
+            heapBudget = -1;
+            watch = false;
+            cwd = null;
+        }
     }
 
+    static final String VERSION = "2";
+
     static AtomicInteger psCounter = new AtomicInteger(0);
 
     static boolean verbose = false;
 
-    static class Logger extends OutputStream {
+    static Reporter reporter;
 
-        private final StringBuffer message = new StringBuffer();
-        private final boolean err;
+    static ThreadLocal<Reporter.FileReport> report = ThreadLocal.withInitial(() -> new Reporter.FileReport(""));
 
-        public Logger(boolean err) {
-            this.err = err;
-        }
+    static void log(Object s) {
+        if (verbose) System.out.println(s);
+    }
 
-        @Override
-        public void write(int b) throws IOException {
-            message.append((char) b);
-        }
+    static void info(Object s) {
+        report.get().info(s);
+    }
 
-        @Override
-        public void write(byte[] b) throws IOException {
-            message.append(new String(b, StandardCharsets.UTF_8));
-        }
+    static void warn(Object s) {
+        report.get().warn(s);
+    }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            message.append(new String(Arrays.copyOfRange(b, off, len), StandardCharsets.UTF_8));
-        }
+    static final Object mutex = new Object();
 
-        @Override
-        public void flush() throws IOException {
-        }
+    static void skip(String reason, int line) {
+        Metrics.skip(reason);
+        warn(reason);
+        report.get().finding("skipped", line, reason);
+    }
 
-        @Override
-        public void close() throws IOException {
-            try {
-                if (err) {
-                    var errors = message.toString().trim();
-                    if (!errors.isBlank() && errors.indexOf('\n') != errors.lastIndexOf('\n')) {
-                        synchronized (System.err) {
-                            System.err.println("\n");
-                            System.err.println("Error:");
-                            System.err.println(errors);
-                            Thread.sleep(2);
-                        }
-                    }
-                } else {
-                    var logs = message.toString().trim();
-                    if (!logs.isBlank()) {
-                        synchronized (System.out) {
-                            System.out.println("\n");
-                            System.out.println("Log:");
-                            System.out.println(logs);
-                            Thread.sleep(2);
-                        }
+    /**
+     * One based line numbers of a text.
+     */
+    static final class Lines {
+        private final int[] starts;
+        private final int count;
+
+        Lines(CharSequence text) {
+            var starts = new int[64];
+            int count = 1;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
                     }
+                    starts[count++] = i + 1;
                 }
-            } catch (InterruptedException ignore) {
-            } finally {
-                message.setLength(0);
             }
+            this.starts = starts;
+            this.count = count;
+        }
+
+        int of(int offset) {
+            int at = Arrays.binarySearch(starts, 0, count, offset);
+            return at >= 0 ? at + 1 : -at - 1;
         }
     }
 
-    static ThreadLocal<PrintStream> output = ThreadLocal.withInitial(() -> new PrintStream(new Logger(false), false));
-    static ThreadLocal<PrintStream> outputErr = ThreadLocal.withInitial(() -> new PrintStream(new Logger(true), false));
+    /**
+     * Cached results are only valid for the same tool version and the same patterns.
+     */
+    static long cacheKey() {
+        var parts = new ArrayList<String>(List.of(
+                STORE.engine.equals("ast") ? VERSION + "+ast" : VERSION,
+                STORE.filePattern.pattern(),
+                psInitPattern.pattern(),
+                rsInitPattern.pattern(),
+                usingStatementExecute1.pattern(),
+                usingStatementExecute2.pattern(),
+                statementFix.pattern(),
+                Scan.CANDIDATES.pattern()
+        ));
+        for (var rule : STORE.rules) {
+            parts.add(rule.type() + (rule.closes() ? "" : "?") + rule.declaration().pattern());
+        }
+        return IncrementalCache.key(parts.toArray(String[]::new));
+    }
 
-    static void log(Object s) {
-        if (verbose) System.out.println(s);
+    static String generatedVariable() {
+        return GeneratedVariableAnalyzer.PREFIX + STORE.shard.id(psCounter.incrementAndGet());
     }
 
-    static void info(Object s) {
-        output.get().println(s);
+    /**
+     * Number of a generated statement name, taken from the file and the position so every run and every shard
+     * picks the same one.
+     */
+    static int generatedStatement(Path f, int offset) {
+        var root = STORE.PATH == null ? null : Paths.get(STORE.PATH);
+        return ((int) IncrementalCache.key(Shard.key(root, f)) + offset) & Integer.MAX_VALUE;
     }
 
-    static void warn(Object s) {
-        outputErr.get().println(s);
+    static FileWalker walker() {
+        var walker = new FileWalker(Paths.get(STORE.PATH))
+                .matching(STORE.filePattern)
+                .followLinks(STORE.followLinks);
+        STORE.excludes.forEach(walker::exclude);
+        return walker;
     }
 
-    static final Object mutex = new Object();
+    static FileWalker read() {
+        return walker().start();
+    }
+
+    /**
+     * A path given on the command line.
+     */
+    static Path path(String arg) {
+        return STORE.cwd == null ? Paths.get(arg) : STORE.cwd.resolve(arg);
+    }
 
-    static void done() {
-        output.get().close();
-        outputErr.get().close();
-        output.set(new PrintStream(new Logger(false), false));
-        outputErr.set(new PrintStream(new Logger(true), false));
-    }
-
-    static List<Path> read() throws Exception {
-        List<Path> collect = Files.list(Paths.get(STORE.PATH)).collect(Collectors.toList());
-        while (collect.stream().anyMatch(Files::isDirectory)) {
-            collect = collect.parallelStream().flatMap(path -> {
-                if (Files.isDirectory(path)) {
-                    try {
-                        return Files.list(path);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    /**
+     * @param spec rule types separated by commas, {@code default} for the default ones
+     */
+    static List<ResourceRule> rules(String spec) {
+        var rules = new LinkedHashSet<ResourceRule>();
+        for (var name : spec.split(",")) {
+            var key = name.trim().toLowerCase(Locale.ROOT);
+            if (key.equals("default")) {
+                rules.addAll(DEFAULT_RULES);
+            } else if (RULES.containsKey(key)) {
+                rules.add(RULES.get(key));
+            } else {
+                throw new IllegalArgumentException("Unknown rule: " + name + ", known: " + String.join(",", RULES.keySet()));
+            }
+        }
+        return List.copyOf(rules);
+    }
+
+    static void parse(String[] args) {
+        int i = 1;
+        if (args[0].equals("--merge")) {
+            for (; i < args.length && !args[i].startsWith("--"); i++) {
+                STORE.merge.add(path(args[i]));
+            }
+        } else {
+            STORE.PATH = STORE.cwd == null ? args[0] : path(args[0]).toString();
+        }
+        String shard = null;
+        boolean balanced = false;
+        for (; i < args.length; i++) {
+            switch (args[i]) {
+                case "--verbose":
+                    verbose = true;
+                    break;
+                case "--exclude":
+                    STORE.excludes.add(args[++i]);
+                    break;
+                case "--no-follow-links":
+                    STORE.followLinks = false;
+                    break;
+                case "--cache":
+                    STORE.cache = path(args[++i]);
+                    break;
+                case "--report":
+                    STORE.report = Reporter.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--report-file":
+                    STORE.reportFile = path(args[++i]);
+                    break;
+                case "--verify":
+                    STORE.verify = args[++i];
+                    if (!STORE.verify.equals("report") && !STORE.verify.equals("skip")) {
+                        throw new IllegalArgumentException("Unknown verify mode: " + STORE.verify);
                     }
-                } else {
-                    return STORE.filePattern.matcher(path.getFileName().toString()).matches()
-                            ? Stream.of(path)
-                            : Stream.empty();
-                }
-                return Stream.empty();
-            }).collect(Collectors.toList());
+                    break;
+                case "--dry-run":
+                    STORE.dryRun = true;
+                    break;
+                case "--diff":
+                    STORE.diff = true;
+                    STORE.dryRun = true;
+                    break;
+                case "--threads":
+                    STORE.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--io-threads":
+                    STORE.ioThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics":
+                    STORE.metrics = true;
+                    break;
+                case "--pattern-timeout":
+                    Budget.patternNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[++i]));
+                    break;
+                case "--file-timeout":
+                    Budget.fileNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[++i]));
+                    break;
+                case "--shard":
+                    shard = args[++i];
+                    break;
+                case "--shard-balance":
+                    balanced = true;
+                    break;
+                case "--since":
+                    STORE.since = args[++i];
+                    break;
+                case "--changed-lines":
+                    STORE.changedLines = true;
+                    break;
+                case "--engine":
+                    STORE.engine = args[++i];
+                    if (!STORE.engine.equals("regex") && !STORE.engine.equals("ast")) {
+                        throw new IllegalArgumentException("Unknown engine: " + STORE.engine);
+                    }
+                    break;
+                case "--heap-budget":
+                    STORE.heapBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+                    if (STORE.heapBudget < 0) {
+                        throw new IllegalArgumentException("Negative heap budget: " + args[i]);
+                    }
+                    break;
+                case "--rules":
+                    STORE.rules = rules(args[++i]);
+                    break;
+                case "--watch":
+                    STORE.watch = true;
+                    break;
+                case "--suffix":
+                    STORE.FILE_TYPE = args[++i];
+                    STORE.filePattern = Pattern.compile(".*" + Pattern.quote(STORE.FILE_TYPE));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (shard != null) {
+            STORE.shard = Shard.parse(shard, balanced);
+        }
+        if (STORE.changedLines && STORE.since == null) {
+            throw new IllegalArgumentException("--changed-lines needs --since");
         }
-        return collect;
     }
 
     static Pattern psNamePattern = Pattern.compile("(?m)^\\s*([\\w.]*PreparedStatement)\\s+([\\w\\d]+)\\s*=\\s*[^;]+?(?<!null);");
@@ -139,21 +326,115 @@ class StatementCloser {
     static Pattern usingStatementExecute1 = Pattern.compile("(?m)^.*c\\w+S\\w+\\s*\\(\\s*\\)\\s*(?![^;]*\")[^;]*\\);\n");
     static Pattern usingStatementExecute2 = Pattern.compile("(?m)^.*c\\w+S\\w+\\s*\\(\\s*\\)\\s*(?=[^;]*\")[\\s\\S]*?\"[^\"]*\"[\\s\\S]*?\"?\\);\n");
 
+    static Pattern statementFix = Pattern.compile("(?m)^\\s*(\\btry\\s*\\(\\s*\\w+\\s*\\w+\\s*=)(\\s*[\\w.()]*\\.createStatement\\(\\)\\s*)(\\.[^{]*?\\{)");
+
+    static final ResourceRule RESULT_SET = new ResourceRule.Declared(
+            "ResultSet",
+            "[\\w.]*ResultSet",
+            List.of("ResultSet"),
+            rsNamePattern,
+            "rsNamePattern",
+            StatementCloser::extractRSTryStatement,
+            true
+    );
+    static final ResourceRule PREPARED_STATEMENT = new ResourceRule.Declared(
+            "PreparedStatement",
+            "[\\w.]*PreparedStatement",
+            List.of("PreparedStatement"),
+            psNamePattern,
+            "psNamePattern",
+            StatementCloser::extractPSTryStatement,
+            true
+    );
+    static final ResourceRule CALLABLE_STATEMENT = ResourceRule.Declared.of(
+            "CallableStatement", "[\\w.]*CallableStatement", true, "CallableStatement"
+    );
+    static final ResourceRule CONNECTION = ResourceRule.Declared.of(
+            "Connection", "(?:java\\.sql\\.)?Connection", true, "Connection"
+    );
+    static final ResourceRule STREAM = ResourceRule.Declared.of(
+            "Stream", "[\\w.]*(?:InputStream|OutputStream|Reader|Writer)", true, "Stream", "Reader", "Writer"
+    );
+    /**
+     * Not {@link AutoCloseable}, they need a {@code free()}, so they are only reported.
+     */
+    static final ResourceRule BLOB = ResourceRule.Declared.of(
+            "Blob", "(?:java\\.sql\\.)?N?[BC]lob", false, "Blob", "Clob"
+    );
+
+    /**
+     * Every rule {@code --rules} can name, by lower case type.
+     */
+    static final Map<String, ResourceRule> RULES = Stream.of(
+            RESULT_SET, PREPARED_STATEMENT, CALLABLE_STATEMENT, CONNECTION, STREAM, BLOB
+    ).collect(Collectors.toMap(r -> r.type().toLowerCase(Locale.ROOT), r -> r, (a, b) -> a, LinkedHashMap::new));
+
+    static final List<ResourceRule> DEFAULT_RULES = List.of(RESULT_SET, PREPARED_STATEMENT, CALLABLE_STATEMENT, BLOB);
+
+    /**
+     * Declarations and createStatement() calls all contain one of these literals,
+     * files without any of them are dropped before decoding.
+     */
+    static String[] literals() {
+        var literals = new LinkedHashSet<String>();
+        STORE.rules.forEach(r -> literals.addAll(r.literals()));
+        literals.add("createStatement");
+        return literals.toArray(String[]::new);
+    }
+
+    static LiteralPrefilter prefilter = new LiteralPrefilter(literals());
+
     static int NAME_GROUP = 2;
     static int TYPE_GROUP = 1;
 
+    /**
+     * Name of a pattern in the metrics.
+     */
+    static String name(Pattern p) {
+        if (p == psNamePattern) return "psNamePattern";
+        if (p == psInitPattern) return "psInitPattern";
+        if (p == rsNamePattern) return "rsNamePattern";
+        if (p == rsInitPattern) return "rsInitPattern";
+        if (p == usingStatementExecute1) return "usingStatementExecute1";
+        if (p == usingStatementExecute2) return "usingStatementExecute2";
+        if (p == statementFix) return "statementFix";
+        return p.pattern();
+    }
+
+    static Optional<MatchResult> first(Pattern p, CharSequence text) {
+        return first(p, text, null, GitChanges.ALL);
+    }
+
+    /**
+     * First match that starts on a changed line.
+     */
+    static Optional<MatchResult> first(Pattern p, CharSequence text, Lines lines, IntPredicate changed) {
+        long start = System.nanoTime();
+        var m = p.matcher(Budget.wrap(name(p), text));
+        var found = Optional.<MatchResult>empty();
+        while (m.find()) {
+            if (changed == GitChanges.ALL || changed.test(lines.of(m.start()))) {
+                found = Optional.of(m.toMatchResult());
+                break;
+            }
+        }
+        Metrics.pattern(name(p), start, found.isPresent() ? 1 : 0);
+        return found;
+    }
+
+    static List<MatchResult> all(String name, Pattern p, CharSequence text) {
+        long start = System.nanoTime();
+        var found = p.matcher(Budget.wrap(name, text)).results().collect(Collectors.toList());
+        Metrics.pattern(name, start, found.size());
+        return found;
+    }
+
     static String extractPSTryStatement(String match) {
         try {
-            var name = psNamePattern
-                    .matcher(match)
-                    .results()
-                    .findFirst()
+            var name = first(psNamePattern, match)
                     .map(r -> r.group(NAME_GROUP)
                     ).orElseThrow();
-            var statement = psInitPattern
-                    .matcher(match)
-                    .results()
-                    .findFirst()
+            var statement = first(psInitPattern, match)
                     .orElseThrow();
             return String.format(
                     "var %s = %s(%s)",
@@ -161,6 +442,8 @@ class StatementCloser {
                     statement.group(1).replaceAll("\\s*", ""),
                     statement.group(2) + Optional.ofNullable(statement.group(3)).map(s -> "," + s.trim()).orElse("")
             );
+        } catch (Budget.Exceeded e) {
+            throw e;
         } catch (RuntimeException e) {
             throw new IllegalStateException("Failed to match query -> skipping\n" + match);
         }
@@ -168,16 +451,10 @@ class StatementCloser {
 
     static String extractRSTryStatement(String match) {
         try {
-            var name = rsNamePattern
-                    .matcher(match)
-                    .results()
-                    .findFirst()
+            var name = first(rsNamePattern, match)
                     .map(r -> r.group(NAME_GROUP)
                     ).orElseThrow();
-            var statement = rsInitPattern
-                    .matcher(match)
-                    .results()
-                    .findFirst()
+            var statement = first(rsInitPattern, match)
                     .map(r -> r.group(1))
                     .orElseThrow();
             return String.format(
@@ -185,88 +462,76 @@ class StatementCloser {
                     name,
                     statement
             );
+        } catch (Budget.Exceeded e) {
+            throw e;
         } catch (RuntimeException e) {
             throw new IllegalStateException("Failed to match RS -> skipping\n" + match);
         }
     }
 
-    static String extractContent(String match) {
-        var outBraces = 0;
-        var end = 0;
-        var two = "/";
-        var comment = 0;
-        var ignore = false;
-        for (int i = 0; i < match.length(); i++) {
-            var c = match.charAt(i);
-            two = two.length() == 2 ? two.substring(1) + c : two + c;
-            if (!ignore) {
-                if (c == '{') {
-                    outBraces++;
-                }
-                if (c == '}') {
-                    outBraces--;
-                    if (outBraces < 0) {
-                        end = i - 1;
-                        break;
-                    }
-                }
-            }
-            if (!ignore) {
-                if ("//".equals(two)) {
-                    ignore = true;
-                }
-            } else {
-                if ('\n' == c) {
-                    ignore = false;
-                }
-            }
-            if ("/*".equals(two)) {
-                comment++;
-            }
-            if ("*/".equals(two)) {
-                comment--;
-            }
-        }
-        if (comment != 0) {
+    /**
+     * Content of the block {@code from} is in, up to the character before its closing brace.
+     * Braces inside comments and literals are ignored.
+     */
+    static String extractContent(CharSequence text, int from) {
+        var brace = JavaLexer.closingBrace(text, from);
+        if (brace == JavaLexer.IN_COMMENT) {
             throw new IllegalStateException("Comment -> Skipping");
         }
-        return match.substring(0, end);
+        return text.subSequence(from, brace < 0 ? from : brace - 1).toString();
     }
 
-    static String extractContent(Pattern p, String match, Function<String, String> tryExtractor) {
+    /**
+     * Rewrites the declaration of the rule at {@code start} into a try-with-resources block.
+     * <p>
+     * All checks run before the document is touched, so a thrown {@link IllegalStateException} leaves it as is.
+     * The edits are applied right to left: closing brace, renamed usages and finally the declaration itself.
+     */
+    static void extractContent(ResourceRule rule, PieceTable doc, int start) {
         try {
             log("Extracting content statement");
-            var m = p.matcher(match).results().findFirst().orElseThrow();
-            log(
-                    match.substring(
-                            m.start(),
-                            Math.min(m.start() + 500, match.length() - 1)
-                    )
-            );
-            var contentStart = p.matcher(match).results().findFirst().orElseThrow().end();
-            var c = extractContent(match.substring(contentStart));
-            if (c.contains("return " + m.group(2) + ";") || c.contains("return " + m.group(2) + ".exe")) {
-                throw new IllegalStateException("Detected a return statement -> skipping");
+            long scan = System.nanoTime();
+            var m = rule.declaration().matcher(Budget.wrap(rule.patternName(), doc));
+            boolean found = m.find(start);
+            Metrics.pattern(rule.patternName(), scan, found ? 1 : 0);
+            if (!found) {
+                throw new NoSuchElementException("No value present");
+            }
+            if (verbose) {
+                log(
+                        doc.subSequence(
+                                m.start(),
+                                Math.min(m.start() + 500, doc.length() - 1)
+                        )
+                );
             }
+            var contentStart = m.end();
+            var c = extractContent(doc, contentStart);
+            rule.escapes(m.group(NAME_GROUP), c);
             var fucked = "(?m)^\\s*" + m.group(NAME_GROUP).trim() + "\\s*=";
-            var res = Pattern.compile(fucked).matcher(c).results().collect(Collectors.toList());
+            var res = all("redefinition", Pattern.compile(fucked), c);
             if (res.size() != 0) {
                 throw new IllegalStateException("Fucked up definitions detected -> manual");
             }
             log("Extracting try block");
-            int min = Math.min(contentStart + 50, match.length() - 1);
-            log(match.substring(m.start(), min));
-            var t = tryExtractor.apply(match.substring(m.start(), min).replaceAll("(?m)^\\s*//.*\\s*$", ""));
+            int min = Math.min(contentStart + 50, doc.length() - 1);
+            var head = doc.subSequence(m.start(), min);
+            log(head);
+            var t = rule.tryStatement(head.replaceAll("(?m)^\\s*//.*\\s*$", ""));
             log("Extract successful");
             log(String.format("try ( %s ) { %s }%n", t, c));
             var name =  m.group(NAME_GROUP);
             var np = Pattern.compile("(\\s+|(?<=[(+,!=]))" + name + "(\\s+|(?=[=.),]))");
-            var nn = "generatedVariable" + psCounter.incrementAndGet();
+            var nn = generatedVariable();
             t = np.matcher(t).replaceFirst("$1" + nn + "$2");
-            var rest = match.substring(contentStart + c.length());
-            c = np.matcher(c).replaceAll("$1" + nn + "$2");
-            return String.format("try ( %s ) { %s } %s", t, c, rest);
-        } catch (IllegalStateException e) {
+            var usages = all("usages", np, c);
+            doc.insert(contentStart + c.length(), " } ");
+            for (int i = usages.size() - 1; i >= 0; i--) {
+                var u = usages.get(i);
+                doc.replace(contentStart + u.end(1), contentStart + u.start(2), nn);
+            }
+            doc.replace(m.start(), contentStart, "try ( " + t + " ) { ");
+        } catch (IllegalStateException | Budget.Exceeded e) {
             throw e;
         } catch (RuntimeException failed) {
             failed.printStackTrace();
@@ -274,163 +539,628 @@ class StatementCloser {
         }
     }
 
-    static String extractPSContent(String match) {
-        return extractContent(psNamePattern, match, StatementCloser::extractPSTryStatement);
-    }
+    /**
+     * Declarations of the active rules and loose statements, found in one forward scan.
+     * <p>
+     * A single pattern finds the lines that declare a variable or open a try statement. The declared type picks
+     * the rule, and only the declaration pattern of that rule runs from the start of the line, so the scan costs
+     * about the same however many rules there are.
+     */
+    static final class Scan {
+        static final Pattern CANDIDATES = Pattern.compile("(?m)^\\s*(?:(try)\\s*\\(|([\\w.]+)\\s+[\\w\\d]+\\s*=)");
 
-    static String extractRSContent(String match) {
-        return extractContent(rsNamePattern, match, StatementCloser::extractRSTryStatement);
-    }
+        private final List<ResourceRule> rules;
+        private final Matcher candidates = CANDIDATES.matcher("");
+        private final Matcher fix = statementFix.matcher("");
+        private final Matcher[] declarations;
 
-    public static void main(String[] args) throws Exception {
-        STORE.PATH = args[0];
-        var count = new AtomicInteger(0);
-        read().parallelStream().forEach(f -> {
-            try {
-                var content = new AtomicReference<>(Files.readString(f)
-                        //.replaceAll("(?m)^\\s*//.*\\s*$", "")
-                );
-                var original = content.get();
-                if (
-                        usingStatementExecute1.matcher(original).results().count() != 0
-                                || usingStatementExecute2.matcher(original).results().count() != 0
-                ) {
-                    warn(f.getFileName());
-                    warn("Detected possibly non-closed resources at: " + f.getFileName());
-                    done();
-                }
-                var rsp = rsNamePattern;
-                var psp = psNamePattern;
-                int rsCnt = 0;
-                int psCnt = 0;
-                var rspRes = rsp.matcher(content.get()).results().collect(Collectors.toList());
-                var pspRes = psp.matcher(content.get()).results().collect(Collectors.toList());
-                if (!rspRes.isEmpty() || !pspRes.isEmpty()) {
-                    warn(f.getFileName());
-                    log(f.getFileName());
-                    log("Starting ResultSets");
-                    if (!rspRes.isEmpty()) {
-                        int i = 1;
-                        int skip = 0;
-                        for (MatchResult ignored : rspRes) {
-                            try {
-                                var rm = rsp.matcher(content.get()).results().skip(skip).findFirst().orElseThrow();
-                                content.set(content.get().substring(0, rm.start()) + extractRSContent(content.get().substring(rm.start())));
-                                rsCnt++;
-                            } catch (IllegalStateException e) {
-                                warn(e.getMessage());
-                                skip++;
-                            } catch (RuntimeException e) {
-                                warn("Failed ResultSet: " + i);
-                                warn("Match size:");
-                                warn(rspRes.size());
-                                warn("Found:");
-                                warn(content.get().substring(
-                                        Math.max(ignored.start() - 50, 0),
-                                        Math.min(content.get().length() - 1, ignored.end() + 50)
-                                ));
-                                warn("Original:");
-                                warn(original.substring(
-                                        Math.max(ignored.start() - 50, 0),
-                                        Math.min(content.get().length() - 1, ignored.end() + 50)
-                                ));
-                                throw e;
-                            }
-                            i++;
-                        }
+        /**
+         * Rule of the last match, {@code null} for a loose statement.
+         */
+        ResourceRule rule;
+        /**
+         * The last match, valid until the next call, a copy would copy the whole text.
+         */
+        MatchResult match;
+
+        Scan(List<ResourceRule> rules) {
+            this.rules = rules;
+            this.declarations = new Matcher[rules.size()];
+            for (int i = 0; i < declarations.length; i++) {
+                declarations[i] = rules.get(i).declaration().matcher("");
+            }
+        }
+
+        /**
+         * Finds the first declaration or loose statement that starts at or after {@code from}.
+         */
+        boolean find(CharSequence text, int from) {
+            var input = Budget.wrap("declarations", text);
+            candidates.reset(input);
+            while (from <= input.length() && candidates.find(from)) {
+                int start = candidates.start();
+                if (candidates.start(1) >= 0) {
+                    if (matches(fix, input, start)) {
+                        rule = null;
+                        match = fix;
+                        return true;
                     }
-                    log("Starting PreparedStatements");
-                    log("Beginning: " + pspRes.size() + "\nNow: " + psNamePattern.matcher(content.get()).results().count());
-                    if (!pspRes.isEmpty()) {
-                        int i = 1;
-                        int skip = 0;
-                        for (MatchResult ignored : pspRes) {
-                            try {
-                                var rm = psp.matcher(content.get()).results().skip(skip).findFirst().orElseThrow();
-                                content.set(content.get().substring(0, rm.start()) + extractPSContent(content.get().substring(rm.start())));
-                                psCnt++;
-                            } catch (IllegalStateException e) {
-                                warn(e.getMessage());
-                                skip++;
-                            } catch (RuntimeException e) {
-                                warn("Failed PreparedStatement: " + i);
-                                warn("Match size:");
-                                warn(pspRes.size());
-                                warn("Found:");
-                                warn(content.get().substring(
-                                        Math.max(ignored.start() - 50, 0),
-                                        Math.min(content.get().length() - 1, ignored.end() + 50)
-                                ));
-                                warn("Original:");
-                                warn(original.substring(
-                                        Math.max(ignored.start() - 50, 0),
-                                        Math.min(content.get().length() - 1, ignored.end() + 50)
-                                ));
-                                throw e;
+                } else {
+                    var type = candidates.group(2);
+                    for (int i = 0; i < declarations.length; i++) {
+                        if (rules.get(i).declares(type)) {
+                            if (matches(declarations[i], input, start)) {
+                                rule = rules.get(i);
+                                match = declarations[i];
+                                return true;
                             }
-                            i++;
+                            break;
                         }
                     }
-                    if (rsCnt > 0 || psCnt > 0) {
-                        info(f.getFileName());
-                        info("Found possible issues:");
-                        info("ResultSet - " + rspRes.size());
-                        info("PreparedStatement - " + pspRes.size());
-                        info("Replaced: ");
-                        info("PreparedStatement - " + psCnt);
-                        info("ResultSet - " + rsCnt);
-                    }
                 }
-                var statementFix = Pattern.compile("(?m)^\\s*(\\btry\\s*\\(\\s*\\w+\\s*\\w+\\s*=)(\\s*[\\w.()]*\\.createStatement\\(\\)\\s*)(\\.[^{]*?\\{)");
-                var fixCnt = statementFix.matcher(content.get()).results().count();
-                if (fixCnt != 0) {
+                from = candidates.end();
+            }
+            return false;
+        }
+
+        private static boolean matches(Matcher m, CharSequence input, int start) {
+            return m.reset(input).region(start, input.length()).lookingAt();
+        }
+    }
+
+    /**
+     * Wraps the statement of {@code try (X x = y.createStatement().executeQuery(...)) {} } into a resource of
+     * its own.
+     */
+    static void fixStatement(Path f, PieceTable doc, MatchResult fix) {
+        var matchStart = fix.start();
+        var matchEnd = fix.end();
+        var head = fix.group(1);
+        var stmt = fix.group(2);
+        var tail = fix.group(3);
+        var name = "stmt_generated_" + generatedStatement(f, doc.originalOffset(matchStart));
+        var c = extractContent(doc, matchEnd);
+        doc.insert(matchEnd + c.length(), "}");
+        doc.replace(
+                matchStart,
+                matchEnd,
+                "try ( var "
+                        + name
+                        + " = "
+                        + stmt
+                        + ") { "
+                        + head
+                        + name
+                        + tail
+        );
+    }
+
+    /**
+     * Runs every rewrite over the content of one file.
+     * <p>
+     * Declarations are rewritten in document order. The scan resumes at a rewritten declaration, which no
+     * longer matches but may have become a loose statement, or right after a skipped one, as text before
+     * the current match never changes.
+     *
+     * @return rewritten content or {@code null} when nothing was replaced
+     */
+    static String rewrite(Path f, String original) {
+        var doc = new PieceTable(original);
+        var lines = new Lines(original);
+        var changed = changes == null ? GitChanges.ALL : changes.lines(f);
+        var rules = STORE.rules;
+        long detect = System.nanoTime();
+        var execute = first(usingStatementExecute1, original, lines, changed);
+        if (execute.isEmpty()) {
+            execute = first(usingStatementExecute2, original, lines, changed);
+        }
+        int unclosed = execute.map(MatchResult::start).orElse(-1);
+        if (unclosed >= 0) {
+            warn(f.getFileName());
+            warn("Detected possibly non-closed resources at: " + f.getFileName());
+            report.get().finding(
+                    "unclosed-resource",
+                    lines.of(unclosed),
+                    "Detected possibly non-closed resources"
+            );
+        }
+        long scanned = System.nanoTime();
+        var scan = new Scan(rules);
+        var found = new int[rules.size()];
+        int declared = 0;
+        boolean loose = false;
+        for (int at = 0; scan.find(original, at); at = scan.match.end()) {
+            if (changed == GitChanges.ALL || changed.test(lines.of(scan.match.start()))) {
+                if (scan.rule == null) {
+                    loose = true;
+                } else {
+                    found[rules.indexOf(scan.rule)]++;
+                    declared++;
+                }
+            }
+        }
+        Metrics.pattern("declarations", scanned, declared);
+        Metrics.phase(Metrics.Phase.DETECT, detect);
+        if (declared == 0 && !loose) {
+            return null;
+        }
+        if (declared != 0) {
+            warn(f.getFileName());
+            log(f.getFileName());
+        }
+        var replaced = new int[rules.size()];
+        int statements = 0;
+        int fixed = 0;
+        int resume = 0;
+        while (true) {
+            long find = System.nanoTime();
+            boolean next = scan.find(doc, resume);
+            Metrics.pattern("declarations", find, next ? 1 : 0);
+            if (!next) {
+                break;
+            }
+            var m = scan.match;
+            var rule = scan.rule;
+            int start = m.start();
+            int line = lines.of(doc.originalOffset(start));
+            resume = m.end();
+            if (!changed.test(line)) {
+                continue;
+            }
+            if (rule == null) {
+                if (statements++ == 0) {
                     warn("Loose Statements -> Trying to fix");
-                    try {
-                        for (long i = 0; i < fixCnt; i++) {
-                            var iterText = content.get();
-                            var iterMatch = statementFix.matcher(content.get())
-                                    .results()
-                                    .findFirst()
-                                    .orElseThrow();
-                            var start = iterText.substring(0, iterMatch.start());
-                            var name = "stmt_generated_" + new Random().nextInt(Integer.MAX_VALUE);
-                            var stmt = iterMatch.group(2);
-                            var toProcess = iterText.substring(iterMatch.end());
-                            var c = extractContent(toProcess);
-                            content.set(
-                                    start
-                                            + "try ( var "
-                                            + name
-                                            + " = "
-                                            + stmt
-                                            + ") { "
-                                            + iterMatch.group(1)
-                                            + name
-                                            + iterMatch.group(3)
-                                            + c
-                                            + "}" + toProcess.substring(c.length())
-                            );
-                        }
-                        warn("Success");
-                    } catch (RuntimeException e) {
-                        warn("Failed: ");
-                        e.printStackTrace(outputErr.get());
+                }
+                try {
+                    fixStatement(f, doc, m);
+                    resume = start;
+                    fixed++;
+                    report.get().finding("rewritten", line, "Statement rewritten into try-with-resources");
+                } catch (Budget.Exceeded e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    warn("Failed: ");
+                    report.get().warn(e);
+                    report.get().finding("skipped", line, "Loose Statements -> " + e.getMessage());
+                    Metrics.skip("Loose Statements -> " + e.getMessage());
+                }
+            } else if (!rule.closes()) {
+                warn("Detected possibly non-closed " + rule.type() + " at line " + line);
+                report.get().finding("unclosed-resource", line, "Detected possibly non-closed " + rule.type());
+            } else {
+                long extract = System.nanoTime();
+                try {
+                    extractContent(rule, doc, start);
+                    resume = start;
+                    replaced[rules.indexOf(rule)]++;
+                    report.get().finding("rewritten", line, rule.type() + " rewritten into try-with-resources");
+                } catch (IllegalStateException e) {
+                    skip(e.getMessage(), line);
+                } finally {
+                    Metrics.phase(Metrics.Phase.EXTRACT, extract);
+                }
+            }
+        }
+        int total = fixed;
+        for (int i = 0; i < rules.size(); i++) {
+            if (found[i] != 0) {
+                report.get().found(rules.get(i).type(), found[i]);
+            }
+        }
+        for (int i = 0; i < rules.size(); i++) {
+            if (found[i] != 0 && rules.get(i).closes()) {
+                report.get().replaced(rules.get(i).type(), replaced[i]);
+                total += replaced[i];
+            }
+        }
+        if (total != fixed) {
+            info(f.getFileName());
+            info("Found possible issues:");
+            for (int i = 0; i < rules.size(); i++) {
+                if (found[i] != 0) {
+                    info(rules.get(i).type() + " - " + found[i]);
+                }
+            }
+            info("Replaced: ");
+            for (int i = 0; i < rules.size(); i++) {
+                if (found[i] != 0 && rules.get(i).closes()) {
+                    info(rules.get(i).type() + " - " + replaced[i]);
+                }
+            }
+        }
+        if (statements != 0) {
+            report.get().found("Statement", statements);
+            report.get().replaced("Statement", fixed);
+            if (fixed == statements) {
+                warn("Success");
+            }
+        }
+        return total != 0 ? doc.toString() : null;
+    }
+
+    /**
+     * Generated variables the rewrite left without a {@code .exe*} or {@code .next*} call.
+     * Names that were already broken in the original are not counted against the rewrite.
+     */
+    static List<String> verify(String original, String rewritten) {
+        var broken = GeneratedVariableAnalyzer.broken(rewritten);
+        if (!broken.isEmpty() && original.contains(GeneratedVariableAnalyzer.PREFIX)) {
+            broken.removeAll(GeneratedVariableAnalyzer.broken(original));
+        }
+        return broken;
+    }
+
+    /**
+     * State of one file on its way through the stages.
+     */
+    static final class Job {
+        final Path path;
+        final Reporter.FileReport report;
+        long size;
+        long modified;
+        long hash;
+        ByteBuffer content;
+        byte[] rewritten;
+        long started;
+        /**
+         * Share of the memory budget, given back when the job is finished.
+         */
+        long admitted;
+
+        Job(Path path) {
+            this.path = path;
+            this.report = new Reporter.FileReport(path.toString());
+        }
+    }
+
+    static IncrementalCache cache;
+    static GitChanges changes;
+    static MemoryBudget memory = new MemoryBudget(0, MemoryBudget.REGEX_FACTOR);
+    static final AtomicInteger replaced = new AtomicInteger(0);
+    static final AtomicInteger unchanged = new AtomicInteger(0);
+    static final AtomicInteger unverified = new AtomicInteger(0);
+    static final AtomicInteger failed = new AtomicInteger(0);
+    static final AtomicInteger timedOut = new AtomicInteger(0);
+    static final AtomicInteger failedIO = new AtomicInteger(0);
+
+    /**
+     * Cache lookups, reading and the prefilter.
+     *
+     * @return whether the file has to go through the rewrite
+     */
+    static boolean load(Job job) throws IOException {
+        var f = job.path;
+        var attributes = Files.readAttributes(f, BasicFileAttributes.class);
+        job.size = attributes.size();
+        job.modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (cache != null && cache.unchanged(f, job.size, job.modified)) {
+            unchanged.incrementAndGet();
+            return false;
+        }
+        job.admitted = memory.admit(job.size);
+        job.content = SourceIO.read(f, job.size);
+        job.hash = cache != null ? IncrementalCache.hash(job.content) : 0L;
+        if (cache != null && cache.unchanged(f, job.size, job.modified, job.hash)) {
+            unchanged.incrementAndGet();
+            return false;
+        }
+        if (!prefilter.test(job.content)) {
+            if (cache != null) {
+                cache.record(f, job.size, job.modified, job.hash, IncrementalCache.Status.CLEAN, null);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decoding, rewriting and verification, runs with the report of the job as the report of the thread.
+     *
+     * @return whether there is something to write
+     */
+    static boolean transform(Job job) throws IOException {
+        var f = job.path;
+        long start = System.nanoTime();
+        var original = SourceIO.decode(job.content);
+        Metrics.phase(Metrics.Phase.DECODE, start);
+        start = System.nanoTime();
+        var rewritten = STORE.engine.equals("ast")
+                ? AstEngine.rewrite(f, original, changes == null ? GitChanges.ALL : changes.lines(f))
+                : rewrite(f, original);
+        Metrics.phase(Metrics.Phase.REWRITE, start);
+        boolean withheld = false;
+        if (rewritten != null && STORE.verify != null) {
+            start = System.nanoTime();
+            var broken = verify(original, rewritten);
+            Metrics.phase(Metrics.Phase.VERIFY, start);
+            if (!broken.isEmpty()) {
+                unverified.incrementAndGet();
+                warn(f.getFileName());
+                warn("Verification failed, unused generated variables:");
+                for (var name : broken) {
+                    warn(name);
+                    job.report.finding("unverified", 0, name + " is never used with .exe or .next");
+                }
+                if (STORE.verify.equals("skip")) {
+                    warn("Not writing " + f.getFileName());
+                    rewritten = null;
+                    withheld = true;
+                }
+            }
+        }
+        if (rewritten != null && STORE.diff) {
+            job.report.diff = UnifiedDiff.diff(f.toString(), original, rewritten);
+        }
+        if (rewritten != null && STORE.dryRun) {
+            replaced.incrementAndGet();
+            return false;
+        }
+        if (rewritten == null) {
+            // a run restricted to changed lines says nothing about the rest of the file, and a rewrite held
+            // back by --verify skip is still due for a run with another --verify mode
+            if (cache != null && changes == null && !withheld) {
+                var reasons = job.report.skipReasons();
+                cache.record(
+                        f,
+                        job.size,
+                        job.modified,
+                        job.hash,
+                        reasons.isEmpty() ? IncrementalCache.Status.CLEAN : IncrementalCache.Status.SKIPPED,
+                        String.join("\n", reasons)
+                );
+            }
+            return false;
+        }
+        job.rewritten = rewritten.getBytes(StandardCharsets.UTF_8);
+        return true;
+    }
+
+    static void store(Job job) throws IOException {
+        var f = job.path;
+        if (SourceIO.write(f, job.content, job.rewritten)) {
+            job.report.rewritten = true;
+            replaced.incrementAndGet();
+        }
+        if (cache != null && changes == null) {
+            cache.record(
+                    f,
+                    job.rewritten.length,
+                    Files.getLastModifiedTime(f).to(TimeUnit.NANOSECONDS),
+                    IncrementalCache.hash(job.rewritten),
+                    IncrementalCache.Status.REWRITTEN,
+                    String.join("\n", job.report.skipReasons())
+            );
+        }
+    }
+
+    static void readStage(Scheduler scheduler, Job job) {
+        job.started = System.nanoTime();
+        try {
+            boolean load = load(job);
+            Metrics.phase(Metrics.Phase.READ, job.started);
+            if (load) {
+                scheduler.cpu(() -> rewriteStage(scheduler, job));
+                return;
+            }
+        } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+            fail(job, e);
+        }
+        finish(job);
+    }
+
+    static void rewriteStage(Scheduler scheduler, Job job) {
+        report.set(job.report);
+        Budget.startFile();
+        try {
+            if (transform(job)) {
+                scheduler.write(() -> writeStage(job));
+                return;
+            }
+        } catch (Budget.Exceeded e) {
+            timedOut(job, e);
+        } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+            fail(job, e);
+        } finally {
+            Budget.endFile();
+            report.remove();
+        }
+        finish(job);
+    }
+
+    static void writeStage(Job job) {
+        long start = System.nanoTime();
+        try {
+            store(job);
+            Metrics.phase(Metrics.Phase.WRITE, start);
+        } catch (Exception | StackOverflowError | OutOfMemoryError e) {
+            fail(job, e);
+        }
+        finish(job);
+    }
+
+    /**
+     * Abandons a file whose pattern scans ran out of time, nothing of it is written.
+     * <p>
+     * Nothing goes into the cache either: the timeout depends on the load of the machine and the budgets,
+     * the next run tries the file again.
+     */
+    static void timedOut(Job job, Budget.Exceeded e) {
+        timedOut.incrementAndGet();
+        Metrics.skip(e.getMessage());
+        job.report.warn(job.path.getFileName());
+        job.report.warn(e.getMessage());
+        job.report.finding("skipped", 0, e.getMessage());
+    }
+
+    /**
+     * Records the failure of one file, the run goes on with the others and exits with an error at the end.
+     */
+    static void fail(Job job, Throwable e) {
+        (e instanceof IOException ? failedIO : failed).incrementAndGet();
+        job.report.warn(job.path.getFileName());
+        job.report.warn(e);
+        job.report.finding("failed", 0, String.valueOf(e));
+    }
+
+    static void finish(Job job) {
+        memory.release(job.admitted);
+        job.admitted = 0;
+        Metrics.file(
+                job.report.path,
+                job.size,
+                job.started,
+                job.report.replaced.values().stream().mapToInt(Integer::intValue).sum(),
+                job.report.skipReasons().size()
+        );
+        reporter.publish(job.report);
+    }
+
+    static void submit(Scheduler scheduler, Path f) {
+        var job = new Job(f);
+        scheduler.read(() -> readStage(scheduler, job));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int code;
+        if (args.length > 1 && args[0].equals("--daemon")) {
+            code = Daemon.serve(Paths.get(args[1]));
+        } else if (args.length > 1 && args[0].equals("--client")) {
+            code = Daemon.client(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+        } else {
+            code = run(null, args);
+        }
+        if (code != 0) {
+            System.exit(code);
+        }
+    }
+
+    /**
+     * Clears what a previous run in the same JVM left behind.
+     */
+    static void reset() {
+        STORE.reset();
+        Budget.reset();
+        Metrics.reset();
+        verbose = false;
+        psCounter.set(0);
+        cache = null;
+        changes = null;
+    }
+
+    /**
+     * One run of the tool, the daemon calls this for every request.
+     *
+     * @param cwd directory relative paths are resolved against, {@code null} for the working directory
+     * @return exit code, {@code 200} when rewriting a file failed and {@code 210} when only I/O failed
+     */
+    static int run(Path cwd, String[] args) throws Exception {
+        reset();
+        STORE.cwd = cwd;
+        parse(args);
+        if (!STORE.merge.isEmpty()) {
+            return Shard.merge(STORE.merge, STORE.report, STORE.reportFile);
+        }
+        cache = STORE.cache != null
+                ? IncrementalCache.load(STORE.cache, cacheKey())
+                : null;
+        var root = Paths.get(STORE.PATH);
+        List<Path> listed = null;
+        if (STORE.since != null) {
+            long start = System.nanoTime();
+            var since = GitChanges.since(root, STORE.since, STORE.changedLines);
+            changes = STORE.changedLines ? since : null;
+            listed = new ArrayList<>();
+            var filter = walker();
+            for (var f : since.files()) {
+                if (filter.accepts(f)) {
+                    listed.add(f);
+                }
+            }
+            Metrics.phase(Metrics.Phase.WALK, start);
+        }
+        int code = scan(root, listed, STORE.since == null ? null : "Changed since " + STORE.since);
+        if (STORE.watch) {
+            changes = null;
+            Watcher.watch(root, walker(), files -> scan(root, files, "Changed files"));
+        }
+        return code;
+    }
+
+    /**
+     * Rewrites the listed files, or every file under the root when there is no list.
+     *
+     * @param listedAs summary label of the list
+     */
+    static int scan(Path root, List<Path> listed, String listedAs) throws Exception {
+        prefilter = new LiteralPrefilter(literals());
+        memory = new MemoryBudget(
+                STORE.heapBudget < 0 ? MemoryBudget.auto() : STORE.heapBudget,
+                STORE.engine.equals("ast") ? MemoryBudget.AST_FACTOR : MemoryBudget.REGEX_FACTOR
+        );
+        for (var counter : new AtomicInteger[]{replaced, unchanged, unverified, failed, timedOut, failedIO}) {
+            counter.set(0);
+        }
+        try (
+                var reports = new Reporter(STORE.report, STORE.reportFile);
+                var scheduler = new Scheduler(STORE.threads, STORE.ioThreads);
+                var walker = listed == null ? read() : null
+        ) {
+            reporter = reports;
+            log("Rewriting on " + STORE.threads + " threads, I/O on "
+                    + (scheduler.virtual() ? "virtual threads" : STORE.ioThreads + " threads"));
+            if (walker != null && STORE.shard.balanced) {
+                listed = new ArrayList<>();
+                for (Path f; (f = walker.next()) != null; ) {
+                    listed.add(f);
+                }
+            }
+            if (listed != null) {
+                for (var f : STORE.shard.balanced ? STORE.shard.balance(root, listed) : listed) {
+                    if (STORE.shard.balanced || STORE.shard.owns(root, f)) {
+                        submit(scheduler, f);
                     }
                 }
-                if (rsCnt != 0 || psCnt != 0 || fixCnt != 0) {
-                    Files.write(f, content.get().getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
-                    count.incrementAndGet();
+            } else {
+                for (Path f; (f = walker.next()) != null; ) {
+                    if (STORE.shard.owns(root, f)) {
+                        submit(scheduler, f);
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(210);
-            } catch (Throwable e) {
-                e.printStackTrace();
-                System.exit(200);
-            } finally {
-                done();
-            }
-        });
-        info("Replaced" + count);
+            }
+            scheduler.await();
+            if (walker != null) {
+                Metrics.record(Metrics.Phase.WALK, walker.elapsed());
+            }
+            if (cache != null) {
+                cache.save();
+                reporter.summary("Unchanged since last run", unchanged.get());
+            }
+            if (STORE.shard != Shard.ALL) {
+                reporter.summary("Shard", STORE.shard.toString());
+            }
+            if (listed != null && listedAs != null) {
+                reporter.summary(listedAs, listed.size());
+            }
+            reporter.summary("Rejected without JDBC usage", prefilter.rejected() + "/" + prefilter.scanned());
+            reporter.summary(STORE.dryRun ? "Would replace" : "Replaced", replaced.get());
+            if (STORE.verify != null) {
+                reporter.summary("Failed verification", unverified.get());
+            }
+            if (timedOut.get() != 0) {
+                reporter.summary("Timed out", timedOut.get());
+            }
+            if (STORE.heapBudget > 0 || memory.waited() != 0 || memory.oversized() != 0) {
+                reporter.summary("Peak bytes in flight", memory.peak());
+                reporter.summary("Waited for heap budget", memory.waited());
+                reporter.summary("Oversized files", memory.oversized());
+            }
+            if (failed.get() != 0 || failedIO.get() != 0) {
+                reporter.summary("Failed", failed.get() + failedIO.get());
+            }
+        }
+        if (STORE.metrics) {
+            Metrics.print(System.err);
+        }
+        return failed.get() != 0 ? 200 : failedIO.get() != 0 ? 210 : 0;
     }
 }
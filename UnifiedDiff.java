@@ -0,0 +1,251 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Line based unified diff.
+ * <p>
+ * Lines are interned to ints and compared with the linear space variant of Myers' O(ND) algorithm: the
+ * middle snake of the edit graph splits the problem in two halves until one side is empty. Common prefixes
+ * and suffixes are stripped on every level, so the typical rewrite with a few scattered changes stays close
+ * to a single linear pass.
+ */
+final class UnifiedDiff {
+
+    static final int CONTEXT = 3;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] deleted;
+    private final boolean[] inserted;
+
+    private UnifiedDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+    }
+
+    /**
+     * @return the diff between the two texts, empty when they are equal
+     */
+    static String diff(String path, String before, String after) {
+        if (before.equals(after)) {
+            return "";
+        }
+        var ids = new HashMap<String, Integer>();
+        var left = lines(before);
+        var right = lines(after);
+        var diff = new UnifiedDiff(intern(left, ids), intern(right, ids));
+        diff.compare(0, left.length, 0, right.length);
+        return diff.render(path, left, right);
+    }
+
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi) {
+            Arrays.fill(inserted, bLo, bHi, true);
+        } else if (bLo == bHi) {
+            Arrays.fill(deleted, aLo, aHi, true);
+        } else {
+            var split = middleSnake(aLo, aHi, bLo, bHi);
+            if (split == null) {
+                Arrays.fill(deleted, aLo, aHi, true);
+                Arrays.fill(inserted, bLo, bHi, true);
+            } else {
+                compare(aLo, split[0], bLo, split[1]);
+                compare(split[0], aHi, split[1], bHi);
+            }
+        }
+    }
+
+    /**
+     * Point on an optimal path through the middle of the edit graph, searched from both corners at once.
+     *
+     * @return {@code {x, y}} in absolute indices or {@code null} when the ranges have nothing in common
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int max = (n + m + 1) / 2;
+        int offset = max;
+        var forward = new int[2 * max + 2];
+        var backward = new int[2 * max + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean front = (delta & 1) != 0;
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < max; d++) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1offset = offset + k1;
+                int x1 = k1 == -d || k1 != d && forward[k1offset - 1] < forward[k1offset + 1]
+                        ? forward[k1offset + 1]
+                        : forward[k1offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                forward[k1offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2offset = offset + delta - k1;
+                    if (k2offset >= 0 && k2offset < backward.length && backward[k2offset] != -1) {
+                        if (x1 >= n - backward[k2offset]) {
+                            return new int[]{aLo + x1, bLo + y1};
+                        }
+                    }
+                }
+            }
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2offset = offset + k2;
+                int x2 = k2 == -d || k2 != d && backward[k2offset - 1] < backward[k2offset + 1]
+                        ? backward[k2offset + 1]
+                        : backward[k2offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                backward[k2offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1offset = offset + delta - k2;
+                    if (k1offset >= 0 && k1offset < forward.length && forward[k1offset] != -1) {
+                        int x1 = forward[k1offset];
+                        int y1 = offset + x1 - k1offset;
+                        if (x1 >= n - x2) {
+                            return new int[]{aLo + x1, bLo + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private String render(String path, String[] left, String[] right) {
+        var sb = new StringBuilder();
+        sb.append("--- ").append(path).append('\n');
+        sb.append("+++ ").append(path).append('\n');
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && deleted[i] || j < b.length && inserted[j]) {
+                int ctx = Math.min(CONTEXT, i);
+                int hunkA = i - ctx;
+                int hunkB = j - ctx;
+                int end = i;
+                int endB = j;
+                // extend the hunk while the next change is close enough to share the context
+                while (true) {
+                    while (end < a.length && deleted[end] || endB < b.length && inserted[endB]) {
+                        if (end < a.length && deleted[end]) {
+                            end++;
+                        } else {
+                            endB++;
+                        }
+                    }
+                    int same = 0;
+                    while (end + same < a.length && endB + same < b.length
+                            && !deleted[end + same] && !inserted[endB + same]) {
+                        same++;
+                    }
+                    if (end + same == a.length && endB + same == b.length || same > 2 * CONTEXT) {
+                        break;
+                    }
+                    end += same;
+                    endB += same;
+                }
+                int tailA = Math.min(a.length, end + CONTEXT);
+                int tailB = endB + (tailA - end);
+                hunk(sb, left, right, hunkA, tailA, hunkB, tailB);
+                i = tailA;
+                j = tailB;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private void hunk(StringBuilder sb, String[] left, String[] right, int aFrom, int aTo, int bFrom, int bTo) {
+        sb.append("@@ -").append(range(aFrom, aTo - aFrom)).append(" +").append(range(bFrom, bTo - bFrom)).append(" @@\n");
+        int i = aFrom;
+        int j = bFrom;
+        while (i < aTo || j < bTo) {
+            if (i < aTo && deleted[i]) {
+                line(sb, '-', left[i++]);
+            } else if (j < bTo && inserted[j]) {
+                line(sb, '+', right[j++]);
+            } else {
+                line(sb, ' ', left[i++]);
+                j++;
+            }
+        }
+    }
+
+    private static String range(int from, int length) {
+        return length == 1 ? String.valueOf(from + 1) : (length == 0 ? from : from + 1) + "," + length;
+    }
+
+    private static void line(StringBuilder sb, char kind, String line) {
+        sb.append(kind);
+        if (line.endsWith("\n")) {
+            sb.append(line);
+        } else {
+            sb.append(line).append("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /**
+     * Lines with their terminator, the last one may have none.
+     */
+    private static String[] lines(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        if (!text.isEmpty() && text.charAt(text.length() - 1) != '\n') {
+            count++;
+        }
+        var lines = new String[count];
+        int from = 0;
+        for (int k = 0; k < count; k++) {
+            int end = text.indexOf('\n', from);
+            end = end < 0 ? text.length() : end + 1;
+            lines[k] = text.substring(from, end);
+            from = end;
+        }
+        return lines;
+    }
+
+    private static int[] intern(String[] lines, HashMap<String, Integer> ids) {
+        var interned = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            interned[i] = ids.computeIfAbsent(lines[i], k -> ids.size());
+        }
+        return interned;
+    }
+}
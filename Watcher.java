@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Re-checks files as soon as they are saved.
+ * <p>
+ * Every directory the walk would enter is registered with a {@link WatchService}, new ones as they appear.
+ * Events are collected until the tree has been quiet for {@link #QUIET_MILLIS}, so an editor saving through a
+ * temporary file or a branch switch touching hundreds of files ends up in one batch. Files whose modification
+ * time is still the one seen after the previous batch are left out, which keeps the tool from chasing its
+ * own writes.
+ * <pre>
+ * java -cp out StatementCloser src --watch
+ * </pre>
+ */
+final class Watcher {
+
+    static final long QUIET_MILLIS = 100;
+
+    interface Batch {
+        void run(List<Path> files) throws Exception;
+    }
+
+    private final WatchService service;
+    private final FileWalker filter;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, FileTime> seen = new HashMap<>();
+
+    private Watcher(WatchService service, FileWalker filter) {
+        this.service = service;
+        this.filter = filter;
+    }
+
+    /**
+     * Runs the batch for every set of saved files until the thread is interrupted.
+     *
+     * @param filter decides which files and directories count, it is never started
+     */
+    static void watch(Path root, FileWalker filter, Batch batch) throws Exception {
+        try (var service = root.getFileSystem().newWatchService()) {
+            var watcher = new Watcher(service, filter);
+            watcher.register(root, null);
+            System.err.println("Watching " + watcher.directories.size() + " directories under " + root);
+            while (!Thread.currentThread().isInterrupted()) {
+                var files = watcher.next(root);
+                if (!files.isEmpty()) {
+                    batch.run(files);
+                    watcher.remember(files);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the next quiet period after at least one event.
+     */
+    private List<Path> next(Path root) throws InterruptedException, IOException {
+        var changed = new LinkedHashSet<Path>();
+        var key = service.take();
+        do {
+            var dir = directories.get(key);
+            for (var event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, look at everything once more
+                    register(root, changed);
+                    continue;
+                }
+                var p = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                    register(p, changed);
+                } else if (filter.accepts(p)) {
+                    changed.add(p);
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+        } while ((key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null);
+        return changed.stream().filter(this::modified).collect(Collectors.toList());
+    }
+
+    /**
+     * Watches the directory and the ones below it that are not excluded.
+     *
+     * @param found collects the files already in there, {@code null} to skip them
+     */
+    private void register(Path start, Set<Path> found) throws IOException {
+        var registered = Set.copyOf(directories.values());
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (filter.excludes(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!registered.contains(dir)) {
+                    directories.put(dir.register(
+                            service,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY
+                    ), dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (found != null && filter.accepts(file)) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean modified(Path f) {
+        try {
+            return !Files.getLastModifiedTime(f).equals(seen.get(f));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void remember(List<Path> files) {
+        for (var f : files) {
+            try {
+                seen.put(f, Files.getLastModifiedTime(f));
+            } catch (IOException e) {
+                seen.remove(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,666 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Finds the statements and result sets that are never closed while the application runs, for what the
+ * rewrite has to leave alone: returned resources, split declarations and the like.
+ * <p>
+ * Connections are wrapped in a proxy, either by a driver for URLs starting with {@code jdbc:leak:}, which
+ * opens the connection of the URL without that part through the registered drivers, or by
+ * {@link #wrap(Connection)} and {@link #wrap(Driver)}. The registered drivers themselves are left alone. One in
+ * {@code sample} statements the connections create is wrapped as well, together with every result set it
+ * returns; the others are handed out as they are and cost nothing. A wrapped resource remembers the first
+ * frame of the application that created it and is registered with a {@link Cleaner}, which counts a leak at
+ * that frame when the resource becomes unreachable without being closed. Closing a statement or its
+ * connection closes its result sets, and executing it again or moving to its next result closes the current
+ * one, as JDBC does; generated keys stay open until they or their statement are closed.
+ * <p>
+ * The decision to sample comes from the thread's own random generator and the counts go into striped
+ * {@link LongAdder}s, so threads creating statements never wait for each other. Leaks are reported by the
+ * source path and line of the allocation, {@code com/example/dao/UserDao.java:42}, in the text or JSONL
+ * form of the {@code unclosed-resource} findings of StatementCloser, so both can be put side by side.
+ * <pre>
+ * javac -d out-agent agent/*.java
+ * jar cfm leak-agent.jar agent/MANIFEST.MF -C out-agent .
+ * java -javaagent:leak-agent.jar=sample=16,report=leaks.jsonl,format=jsonl -Ddb.url=jdbc:leak:postgresql://db/app -jar app.jar
+ * </pre>
+ * Options, separated by commas:
+ * <ul>
+ *     <li>{@code sample=<n>} track one in {@code n} statements, {@code 16} by default, {@code 1} for all</li>
+ *     <li>{@code report=<file>} where the report goes at exit, standard error by default</li>
+ *     <li>{@code format=text|jsonl} form of the report, {@code text} by default</li>
+ *     <li>{@code interval=<s>} also write the report every {@code s} seconds</li>
+ *     <li>{@code skip=<prefix>} classes whose frames are not the allocation site, e.g. a connection pool,
+ *     may be given more than once; the JDK, proxies and this agent are always skipped</li>
+ * </ul>
+ */
+public final class JdbcLeakAgent {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    private static final ClassValue<Constructor<?>> PROXIES = new ClassValue<>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            var proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, m, a) -> null);
+            try {
+                return proxy.getClass().getConstructor(InvocationHandler.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final Map<String, Site> SITES = new ConcurrentHashMap<>();
+    private static final List<String> JDK = List.of("java.", "javax.", "jdk.", "sun.", "com.sun.");
+
+    /**
+     * Start of the URLs whose connections are tracked, {@code jdbc:leak:h2:mem:} opens {@code jdbc:h2:mem:}.
+     */
+    public static final String PREFIX = "jdbc:leak:";
+
+    private static volatile int sample = 16;
+    private static volatile List<String> skip = List.of();
+    private static volatile Path report;
+    private static volatile boolean jsonl;
+    private static volatile long interval;
+
+    private JdbcLeakAgent() {
+    }
+
+    public static void premain(String args, Instrumentation instrumentation) throws SQLException {
+        configure(args);
+        install();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // gives the cleaner a chance at what became unreachable just before the exit
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignore) {
+            }
+            write();
+        }, "jdbc-leak-report"));
+        if (interval > 0) {
+            var writer = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(interval * 1000);
+                        write();
+                    }
+                } catch (InterruptedException ignore) {
+                }
+            }, "jdbc-leak-report");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public static void agentmain(String args, Instrumentation instrumentation) throws SQLException {
+        premain(args, instrumentation);
+    }
+
+    /**
+     * Applies agent options, see the class documentation.
+     *
+     * @throws IllegalArgumentException for an unknown option or a bad value
+     */
+    public static void configure(String args) {
+        if (args == null || args.isBlank()) {
+            return;
+        }
+        var prefixes = new ArrayList<>(skip);
+        for (var option : args.split(",")) {
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + option);
+            }
+            var value = option.substring(eq + 1);
+            switch (option.substring(0, eq)) {
+                case "sample":
+                    sample = Integer.parseInt(value);
+                    if (sample < 1) {
+                        throw new IllegalArgumentException("Sample has to be at least 1: " + value);
+                    }
+                    break;
+                case "report":
+                    report = Paths.get(value);
+                    break;
+                case "format":
+                    if (!value.equals("text") && !value.equals("jsonl")) {
+                        throw new IllegalArgumentException("Unknown format: " + value);
+                    }
+                    jsonl = value.equals("jsonl");
+                    break;
+                case "interval":
+                    interval = Long.parseLong(value);
+                    break;
+                case "skip":
+                    prefixes.add(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        skip = List.copyOf(prefixes);
+    }
+
+    /**
+     * Registers the driver for {@link #PREFIX} URLs, once.
+     */
+    public static synchronized void install() throws SQLException {
+        for (var driver : Collections.list(DriverManager.getDrivers())) {
+            if (driver instanceof TrackingDriver) {
+                return;
+            }
+        }
+        DriverManager.registerDriver(new TrackingDriver(null));
+    }
+
+    /**
+     * Tracks the statements of a connection, e.g. one from a pool that does not go through the
+     * {@link DriverManager}.
+     */
+    public static Connection wrap(Connection connection) {
+        if (Proxy.isProxyClass(connection.getClass()) && Proxy.getInvocationHandler(connection) instanceof Handler) {
+            return connection;
+        }
+        return proxy(Connection.class, new Handler(connection, new State(null, null), null));
+    }
+
+    /**
+     * Tracks the statements of every connection the driver opens.
+     */
+    public static Driver wrap(Driver driver) {
+        return driver instanceof TrackingDriver ? driver : new TrackingDriver(driver);
+    }
+
+    /**
+     * Every allocation site seen so far, leaking or not.
+     */
+    public static List<Site> sites() {
+        return new ArrayList<>(SITES.values());
+    }
+
+    /**
+     * Sampled resources that were never closed, per allocation site, most leaks first.
+     */
+    public static List<Site> leaks() {
+        var leaks = new ArrayList<Site>();
+        for (var site : SITES.values()) {
+            if (site.leaked() > 0) {
+                leaks.add(site);
+            }
+        }
+        leaks.sort(Comparator.comparingLong(Site::leaked).reversed().thenComparing(Site::toString));
+        return leaks;
+    }
+
+    /**
+     * Writes the leaks found so far to the report file or to standard error.
+     */
+    static void write() {
+        try {
+            if (report == null) {
+                report(System.err);
+                return;
+            }
+            var tmp = report.resolveSibling(report.getFileName() + ".tmp");
+            try (var out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                report(out);
+            }
+            Files.move(tmp, report, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            new UncheckedIOException(e).printStackTrace();
+        }
+    }
+
+    /**
+     * Renders the leaks in the configured format.
+     */
+    public static void report(Writer out) throws IOException {
+        var leaks = leaks();
+        long sampled = 0;
+        long leaked = 0;
+        for (var site : SITES.values()) {
+            sampled += site.sampled();
+            leaked += site.leaked();
+        }
+        if (!jsonl) {
+            out.write("JDBC leaks, 1 in " + sample + " statements sampled: " + leaked + " of " + sampled
+                    + " tracked resources never closed\n");
+            for (var site : leaks) {
+                out.write(site.path + ":" + site.line + " " + site.message() + "\n");
+            }
+            return;
+        }
+        var byPath = new TreeMap<String, List<Site>>();
+        for (var site : leaks) {
+            byPath.computeIfAbsent(site.path, p -> new ArrayList<>()).add(site);
+        }
+        for (var e : byPath.entrySet()) {
+            out.write("{\"type\":\"file\",\"path\":" + json(e.getKey()) + ",\"findings\":[");
+            var sites = e.getValue();
+            for (int i = 0; i < sites.size(); i++) {
+                var site = sites.get(i);
+                out.write((i == 0 ? "" : ",")
+                        + "{\"rule\":\"unclosed-resource\""
+                        + ",\"line\":" + site.line
+                        + ",\"message\":" + json(site.message()) + "}");
+            }
+            out.write("]}\n");
+        }
+        out.write("{\"type\":\"summary\",\"values\":{\"Sample\":" + sample
+                + ",\"Tracked\":" + sampled + ",\"Leaked\":" + leaked + "}}\n");
+    }
+
+    /**
+     * Renders the leaks in the configured format to a stream.
+     */
+    public static void report(PrintStream out) throws IOException {
+        var writer = new PrintWriter(out);
+        report(writer);
+        writer.flush();
+    }
+
+    /**
+     * Where resources of one kind were created and how many of the tracked ones leaked.
+     */
+    public static final class Site {
+        final String kind;
+        final String path;
+        final int line;
+        final String method;
+        private final LongAdder sampled = new LongAdder();
+        private final LongAdder leaked = new LongAdder();
+
+        Site(String kind, String path, int line, String method) {
+            this.kind = kind;
+            this.path = path;
+            this.line = line;
+            this.method = method;
+        }
+
+        public String kind() {
+            return kind;
+        }
+
+        /**
+         * Source path relative to the source root, from the package of the class.
+         */
+        public String path() {
+            return path;
+        }
+
+        public int line() {
+            return line;
+        }
+
+        /**
+         * Class and method of the allocation, {@code UserDao.find}.
+         */
+        public String method() {
+            return method;
+        }
+
+        public long sampled() {
+            return sampled.sum();
+        }
+
+        public long leaked() {
+            return leaked.sum();
+        }
+
+        String message() {
+            return "Detected non-closed " + kind + " at runtime, " + leaked() + " of " + sampled()
+                    + " tracked never closed, created in " + method;
+        }
+
+        @Override
+        public String toString() {
+            return path + ":" + line + " " + kind;
+        }
+    }
+
+    /**
+     * Whether a resource was closed, checked by the cleaner once it is unreachable.
+     */
+    private static final class State implements Runnable {
+        final Site site;
+        final State parent;
+        volatile boolean closed;
+        Cleaner.Cleanable cleanable;
+
+        State(Site site, State parent) {
+            this.site = site;
+            this.parent = parent;
+        }
+
+        boolean closed() {
+            return closed || parent != null && parent.closed();
+        }
+
+        void close() {
+            closed = true;
+            if (cleanable != null) {
+                cleanable.clean();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!closed()) {
+                site.leaked.increment();
+            }
+        }
+    }
+
+    private static final class Handler implements InvocationHandler {
+        private final Object target;
+        private final State state;
+        /**
+         * The connection of a statement or the statement of a result set, as the application sees them.
+         */
+        private final Object owner;
+        /**
+         * The current result set of a statement, kept reachable until the statement closes it.
+         */
+        private Object result;
+
+        Handler(Object target, State state, Object owner) {
+            this.target = target;
+            this.state = state;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            var name = method.getName();
+            int parameters = method.getParameterCount();
+            if (name.equals("equals") && parameters == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && parameters == 0) {
+                return System.identityHashCode(proxy);
+            }
+            if (parameters == 0 && owner != null && (name.equals("getConnection") && proxy instanceof Statement
+                    || name.equals("getStatement") && proxy instanceof ResultSet)) {
+                return owner;
+            }
+            Object value;
+            try {
+                value = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (name.equals("close") && parameters == 0) {
+                state.close();
+            } else if (value instanceof Statement && proxy instanceof Connection) {
+                return statement((Statement) value, method.getReturnType(), proxy);
+            } else if (proxy instanceof Statement) {
+                if (name.startsWith("execute") || name.equals("getMoreResults")
+                        && (parameters == 0 || (Integer) args[0] != Statement.KEEP_CURRENT_RESULT)) {
+                    // executing again or moving on closes the current result
+                    if (result != null) {
+                        handler(result).state.close();
+                        result = null;
+                    }
+                }
+                if (value instanceof ResultSet) {
+                    return resultSet((ResultSet) value, proxy, name.startsWith("execute") || name.equals("getResultSet"));
+                }
+            }
+            return value;
+        }
+
+        private Object statement(Statement statement, Class<?> type, Object connection) {
+            if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+                return statement;
+            }
+            return track(type, statement, type.getSimpleName(), connection);
+        }
+
+        /**
+         * @param current whether it is the current result of the statement, unlike e.g. generated keys
+         */
+        private Object resultSet(ResultSet resultSet, Object statement, boolean current) {
+            if (!current) {
+                return track(ResultSet.class, resultSet, "ResultSet", statement);
+            }
+            if (result == null || handler(result).target != resultSet) {
+                result = track(ResultSet.class, resultSet, "ResultSet", statement);
+            }
+            return result;
+        }
+
+        private Object track(Class<?> type, Object target, String kind, Object owner) {
+            var state = new State(site(kind), this.state);
+            var proxy = proxy(type, new Handler(target, state, owner));
+            state.site.sampled.increment();
+            state.cleanable = CLEANER.register(proxy, state);
+            return proxy;
+        }
+    }
+
+    /**
+     * Opens tracked connections through one driver, or through every registered driver for {@link #PREFIX} URLs
+     * when there is none.
+     */
+    private static final class TrackingDriver implements Driver {
+        private final Driver driver;
+
+        TrackingDriver(Driver driver) {
+            this.driver = driver;
+        }
+
+        /**
+         * The URL for the underlying drivers, {@code null} when this driver does not take it.
+         */
+        private String url(String url) {
+            if (driver != null) {
+                return url;
+            }
+            return url != null && url.startsWith(PREFIX) ? "jdbc:" + url.substring(PREFIX.length()) : null;
+        }
+
+        private List<Driver> drivers() {
+            if (driver != null) {
+                return List.of(driver);
+            }
+            var drivers = new ArrayList<Driver>();
+            for (var d : Collections.list(DriverManager.getDrivers())) {
+                if (!(d instanceof TrackingDriver)) {
+                    drivers.add(d);
+                }
+            }
+            return drivers;
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            url = url(url);
+            if (url == null) {
+                return null;
+            }
+            for (var d : drivers()) {
+                if (d.acceptsURL(url)) {
+                    var connection = d.connect(url, info);
+                    if (connection != null) {
+                        return wrap(connection);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) throws SQLException {
+            url = url(url);
+            if (url == null) {
+                return false;
+            }
+            for (var d : drivers()) {
+                if (d.acceptsURL(url)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+            url = url(url);
+            if (url == null) {
+                return new DriverPropertyInfo[0];
+            }
+            for (var d : drivers()) {
+                if (d.acceptsURL(url)) {
+                    return d.getPropertyInfo(url, info);
+                }
+            }
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return driver != null ? driver.getMajorVersion() : 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return driver != null ? driver.getMinorVersion() : 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return driver != null && driver.jdbcCompliant();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            if (driver != null) {
+                return driver.getParentLogger();
+            }
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private static Handler handler(Object proxy) {
+        return (Handler) Proxy.getInvocationHandler(proxy);
+    }
+
+    /**
+     * Same as {@link Proxy#newProxyInstance}, without looking the proxy class up again every time.
+     */
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        try {
+            return type.cast(PROXIES.get(type).newInstance(handler));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The first frame outside of the JDK, the proxies, this agent and the skipped classes.
+     */
+    private static Site site(String kind) {
+        var skipped = skip;
+        var frame = WALKER.walk(frames -> frames
+                .filter(f -> !skipped(f.getClassName(), skipped))
+                .findFirst()
+                .orElse(null));
+        if (frame == null) {
+            return SITES.computeIfAbsent(kind + " ?", k -> new Site(kind, "?", 0, "?"));
+        }
+        var className = frame.getClassName();
+        // the bytecode index is there without resolving the line number, which is the slow part of a frame
+        var key = kind + " " + className + "." + frame.getMethodName() + "@" + frame.getByteCodeIndex();
+        var site = SITES.get(key);
+        if (site != null) {
+            return site;
+        }
+        return SITES.computeIfAbsent(key, k -> new Site(
+                kind,
+                path(className, frame.getFileName()),
+                Math.max(0, frame.getLineNumber()),
+                className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName()
+        ));
+    }
+
+    private static boolean skipped(String className, List<String> prefixes) {
+        var agent = JdbcLeakAgent.class.getName();
+        if (className.equals(agent) || className.startsWith(agent + "$")) {
+            return true;
+        }
+        for (var prefix : JDK) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (var prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@code com/example/dao/UserDao.java} for {@code com.example.dao.UserDao$Row} in {@code UserDao.java}.
+     */
+    private static String path(String className, String fileName) {
+        int dot = className.lastIndexOf('.');
+        var pkg = dot < 0 ? "" : className.substring(0, dot + 1).replace('.', '/');
+        if (fileName == null) {
+            int nested = className.indexOf('$', dot + 1);
+            fileName = className.substring(dot + 1, nested < 0 ? className.length() : nested) + ".java";
+        }
+        return pkg + fileName;
+    }
+
+    private static String json(String s) {
+        var sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,118 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs {@link JdbcLeakAgent} against {@link StubDriver} and checks what it finds, exits with an exception on
+ * the first wrong count.
+ * <p>
+ * Every scenario allocates in a method of its own, so its resources are told apart by the method of their
+ * allocation site. All statements are tracked.
+ * <pre>
+ * javac -d out-agent agent/*.java
+ * javac -cp out-agent -d out-agent-check agent/check/*.java &amp;&amp; cp -r agent/check/META-INF out-agent-check/
+ * java -cp out-agent:out-agent-check LeakCheck
+ * </pre>
+ */
+class LeakCheck {
+
+    static final int LOOPS = 400;
+
+    public static void main(String[] args) throws Exception {
+        JdbcLeakAgent.configure("sample=1");
+        JdbcLeakAgent.install();
+        try (var plain = DriverManager.getConnection("jdbc:stub:mem")) {
+            check("URLs without the prefix are not tracked", 1, JdbcLeakAgent.wrap(plain) != plain ? 1 : 0);
+        }
+        check("driver actions run on install", 0, StubDriver.DEREGISTERED.get());
+
+        var connection = DriverManager.getConnection(JdbcLeakAgent.PREFIX + "stub:mem");
+        leaks(connection);
+        closedConnection();
+        generatedKeys(connection);
+        executedAgain(connection);
+        long expected = 2 * LOOPS / 4 + 2 + 2;
+        for (int i = 0; i < 100 && leaked() < expected; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        check("leaked statements", LOOPS / 4, count("leaks", "PreparedStatement", JdbcLeakAgent.Site::leaked));
+        check("tracked statements", LOOPS, count("leaks", "PreparedStatement", JdbcLeakAgent.Site::sampled));
+        check("leaked result sets of leaked statements", LOOPS / 4, count("leaks", "ResultSet", JdbcLeakAgent.Site::leaked));
+        check("statements of a closed connection", 10, count("closedConnection", "Statement", JdbcLeakAgent.Site::sampled));
+        check("leaked statements of a closed connection", 0, count("closedConnection", "Statement", JdbcLeakAgent.Site::leaked));
+        check("leaked results of a closed connection", 0, count("closedConnection", "ResultSet", JdbcLeakAgent.Site::leaked));
+        check("result left open next to closed generated keys", 1, count("generatedKeys", "ResultSet", JdbcLeakAgent.Site::leaked));
+        check("results of a statement executed twice", 1, count("executedAgain", "ResultSet", JdbcLeakAgent.Site::leaked));
+        check("all leaks", expected, leaked());
+        connection.close();
+        JdbcLeakAgent.report(System.out);
+    }
+
+    /**
+     * One in four statements is left open with its result.
+     */
+    static void leaks(Connection connection) throws SQLException {
+        for (int i = 0; i < LOOPS; i++) {
+            var ps = connection.prepareStatement("SELECT 1");
+            var rs = ps.executeQuery();
+            rs.next();
+            if (i % 4 == 0) {
+                continue;
+            }
+            ps.close();
+        }
+    }
+
+    /**
+     * Closing the connection closes its statements and their results.
+     */
+    static void closedConnection() throws SQLException {
+        var connection = DriverManager.getConnection(JdbcLeakAgent.PREFIX + "stub:mem");
+        for (int i = 0; i < 10; i++) {
+            connection.createStatement().executeQuery("SELECT 1").next();
+        }
+        connection.close();
+    }
+
+    /**
+     * Getting the generated keys does not close the result of the query, the statement leaks with it.
+     */
+    static void generatedKeys(Connection connection) throws SQLException {
+        var ps = connection.prepareStatement("SELECT 1");
+        ps.executeQuery().next();
+        ps.getGeneratedKeys().close();
+    }
+
+    /**
+     * Executing again closes the first result, the second one leaks with the statement.
+     */
+    static void executedAgain(Connection connection) throws SQLException {
+        var st = connection.createStatement();
+        st.executeQuery("SELECT 1").next();
+        st.executeQuery("SELECT 2").next();
+    }
+
+    static long count(String method, String kind, ToLongFunction<JdbcLeakAgent.Site> value) {
+        long n = 0;
+        for (var site : JdbcLeakAgent.sites()) {
+            if (site.method().equals("LeakCheck." + method) && site.kind().equals(kind)) {
+                n += value.applyAsLong(site);
+            }
+        }
+        return n;
+    }
+
+    static long leaked() {
+        return JdbcLeakAgent.sites().stream().mapToLong(JdbcLeakAgent.Site::leaked).sum();
+    }
+
+    static void check(String what, long expected, long actual) {
+        if (expected != actual) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+        System.out.println("ok   " + what + ": " + actual);
+    }
+}
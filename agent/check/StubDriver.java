@@ -0,0 +1,95 @@
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverAction;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * In-memory JDBC driver for {@code jdbc:stub:} URLs, found through {@link java.util.ServiceLoader} like a real one.
+ * <p>
+ * Connections, statements and result sets are proxies that answer every call with a default value and a new
+ * stub for every statement or result set asked for. It registers itself with a {@link DriverAction} that
+ * counts how often it was deregistered.
+ */
+public final class StubDriver implements Driver {
+
+    static final AtomicInteger DEREGISTERED = new AtomicInteger();
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver(), DEREGISTERED::incrementAndGet);
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static Object stub(Class<?> type) {
+        return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            var returns = method.getReturnType();
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "stub " + type.getSimpleName();
+                default:
+            }
+            if (Statement.class.isAssignableFrom(returns) || returns == ResultSet.class) {
+                return stub(returns);
+            }
+            if (returns == boolean.class) {
+                return false;
+            }
+            if (returns == int.class) {
+                return 0;
+            }
+            if (returns == long.class) {
+                return 0L;
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) {
+        return acceptsURL(url) ? (Connection) stub(Connection.class) : null;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url.startsWith("jdbc:stub:");
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getLogger("stub");
+    }
+}
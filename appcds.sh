@@ -0,0 +1,13 @@
+#!/bin/sh
+# Packages the tool as out-cds/closer.jar and archives the classes a run loads with AppCDS, so the one-shot CLI
+# starts faster. The archive only fits the JDK and the jar it was made with, and the jar has to be given by the
+# same absolute path; run this again after changing either.
+set -e
+cd "$(dirname "$0")"
+out="$(pwd)/out-cds"
+rm -rf "$out"
+javac -d "$out/classes" *.java
+jar --create --file "$out/closer.jar" --main-class StatementCloser -C "$out/classes" .
+# a dry run over these sources loads the classes of a real run without touching anything
+java -XX:ArchiveClassesAtExit="$out/closer.jsa" -jar "$out/closer.jar" . --dry-run > /dev/null
+echo "java -XX:SharedArchiveFile=$out/closer.jsa -jar $out/closer.jar <path>"
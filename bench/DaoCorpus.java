@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Deterministic generator for DAO style sources.
+ * <p>
+ * The generated methods cover what StatementCloser meets in practice: prepared queries with result set
+ * loops, generated keys, chained createStatement() calls, declarations inside comments, returned and
+ * reassigned resources, nested blocks and statements named like a method they are used together with.
+ * How often each of them appears is set by a {@link Config}.
+ */
+final class DaoCorpus {
+
+    /**
+     * Files per package of a generated tree.
+     */
+    static final int PACKAGE_SIZE = 1000;
+
+    /**
+     * Shares in percent of the statements a generated block is made of, the rest is plain code.
+     */
+    static final class Config {
+        /**
+         * The one the microbenchmarks use.
+         */
+        static final Config DEFAULTS = new Config();
+
+        /**
+         * Statement, PreparedStatement and ResultSet declarations.
+         */
+        int density = 68;
+        /**
+         * Declarations inside block comments followed by one initialized to {@code null}.
+         */
+        int comments = 7;
+        /**
+         * Result sets that are returned out of the method.
+         */
+        int returns = 5;
+        /**
+         * Result sets declared once and assigned again.
+         */
+        int reassigned = 5;
+        /**
+         * Nested blocks, up to {@link #depth} levels.
+         */
+        int nesting = 8;
+        int depth = 2;
+        /**
+         * Statements named like a method that is called unqualified while they are in scope, {@code key()}.
+         */
+        int calls = 3;
+        /**
+         * Lines of the files of a tree, each picked between the two by its seed.
+         */
+        int minLines = 100;
+        int maxLines = 400;
+        long seed = 42;
+
+        /**
+         * @throws IllegalArgumentException when the shares do not fit into 100 or a size is negative
+         */
+        Config validate() {
+            if (density < 0 || comments < 0 || returns < 0 || reassigned < 0 || nesting < 0 || calls < 0
+                    || density + comments + returns + reassigned + nesting + calls > 100) {
+                throw new IllegalArgumentException("Shares have to be at least 0 and at most 100 together");
+            }
+            if (depth < 0 || minLines < 1 || maxLines < minLines) {
+                throw new IllegalArgumentException("Bad depth or lines: " + depth + ", " + minLines + "-" + maxLines);
+            }
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "density=" + density + ",comments=" + comments + ",returns=" + returns
+                    + ",reassigned=" + reassigned + ",nesting=" + nesting + ",depth=" + depth + ",calls=" + calls
+                    + ",lines=" + minLines + "-" + maxLines + ",seed=" + seed;
+        }
+    }
+
+    /**
+     * Size and checksum of a generated tree, equal checksums mean equal trees.
+     */
+    static final class Tree {
+        final int files;
+        final long bytes;
+        final long checksum;
+
+        Tree(int files, long bytes, long checksum) {
+            this.files = files;
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+    }
+
+    private DaoCorpus() {
+    }
+
+    /**
+     * Generates a class with roughly the given number of lines, the same seed always yields the same source.
+     */
+    static String file(long seed, String className, int lines) {
+        return file(seed, "com.example.dao", className, lines, Config.DEFAULTS);
+    }
+
+    /**
+     * Writes {@code files} classes below {@code root}, {@link #PACKAGE_SIZE} to a package, in parallel.
+     * <p>
+     * Every file has its own seed derived from the one of the config and its number, so the same config
+     * always yields the same tree, whatever the order the files are written in.
+     */
+    static Tree write(Path root, int files, Config config) throws IOException {
+        var bytes = new LongAdder();
+        var checksum = new LongAdder();
+        try {
+            IntStream.range(0, files).parallel().forEach(i -> {
+                var pkg = String.format("com.example.dao.p%03d", i / PACKAGE_SIZE);
+                var className = String.format("Dao%06d", i);
+                long seed = config.seed * 0x9E3779B97F4A7C15L + i;
+                int lines = config.minLines + new Random(seed).nextInt(config.maxLines - config.minLines + 1);
+                var content = file(seed, pkg, className, lines, config).getBytes(StandardCharsets.UTF_8);
+                var crc = new CRC32();
+                crc.update(content);
+                try {
+                    var dir = root.resolve(pkg.replace('.', '/'));
+                    Files.createDirectories(dir);
+                    Files.write(dir.resolve(className + ".java"), content);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                bytes.add(content.length);
+                checksum.add(crc.getValue());
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new Tree(files, bytes.sum(), checksum.sum());
+    }
+
+    static String file(long seed, String pkg, String className, int lines, Config config) {
+        var r = new Random(seed);
+        var sb = new StringBuilder(lines * 48);
+        sb.append("package ").append(pkg).append(";\n\n")
+                .append("import java.sql.*;\n")
+                .append("import java.util.ArrayList;\n")
+                .append("import java.util.List;\n\n")
+                .append("public class ").append(className).append(" {\n\n");
+        int method = 0;
+        int generated = lines(sb, 0);
+        while (generated < lines) {
+            int from = sb.length();
+            method(sb, r, method++, config);
+            generated += lines(sb, from);
+        }
+        return sb.append("}\n").toString();
+    }
+
+    private static void method(StringBuilder sb, Random r, int m, Config config) {
+        sb.append("    public List<Object> find").append(m).append("(Connection conn, long id) throws SQLException {\n");
+        sb.append("        var out = new ArrayList<Object>();\n");
+        block(sb, r, "        ", 0, config);
+        sb.append("        return out;\n");
+        sb.append("    }\n\n");
+    }
+
+    private static void block(StringBuilder sb, Random r, String ind, int depth, Config c) {
+        int statements = 1 + r.nextInt(4);
+        for (int j = 0; j < statements; j++) {
+            var ps = "ps" + depth + j;
+            var rs = "rs" + depth + j;
+            int roll = r.nextInt(100);
+            // declarations keep their mix among themselves, the defaults give back the original rolls
+            int kind = roll < c.density ? roll * 68 / c.density : 100;
+            int comments = c.density + c.comments;
+            int returns = comments + c.returns;
+            int reassigned = returns + c.reassigned;
+            int nesting = reassigned + c.nesting;
+            int calls = nesting + c.calls;
+            if (kind < 35) {
+                sb.append(ind).append("PreparedStatement ").append(ps)
+                        .append(" = conn.prepareStatement(\"SELECT id, name FROM table").append(j)
+                        .append(" WHERE id = ?\");\n");
+                sb.append(ind).append(ps).append(".setLong(1, id);\n");
+                if (r.nextInt(10) < 7) {
+                    sb.append(ind).append("ResultSet ").append(rs).append(" = ").append(ps).append(".executeQuery();\n");
+                    sb.append(ind).append("while (").append(rs).append(".next()) {\n");
+                    sb.append(ind).append("    out.add(").append(rs).append(".getString(\"name\"));\n");
+                    sb.append(ind).append("}\n");
+                }
+            } else if (kind < 50) {
+                sb.append(ind).append("java.sql.PreparedStatement ").append(ps)
+                        .append(" = conn.prepareStatement(\"INSERT INTO log(a, b) VALUES (?, ?)\",\n");
+                sb.append(ind).append("        Statement.RETURN_GENERATED_KEYS);\n");
+                sb.append(ind).append(ps).append(".executeUpdate();\n");
+                sb.append(ind).append("ResultSet ").append(rs).append(" = ").append(ps).append(".getGeneratedKeys();\n");
+                sb.append(ind).append("if (").append(rs).append(".next()) { out.add(").append(rs).append(".getLong(1)); }\n");
+            } else if (kind < 60) {
+                sb.append(ind).append("try (ResultSet ").append(rs)
+                        .append(" = conn.createStatement().executeQuery(\"SELECT count(*) FROM audit\")) {\n");
+                sb.append(ind).append("    while (").append(rs).append(".next()) { out.add(").append(rs).append(".getInt(1)); }\n");
+                sb.append(ind).append("}\n");
+            } else if (kind < 68) {
+                sb.append(ind).append("Statement st").append(j).append(" = conn.createStatement();\n");
+                sb.append(ind).append("st").append(j).append(".execute(\"UPDATE counters SET n = n + 1\");\n");
+            } else if (roll < comments) {
+                sb.append(ind).append("/* previous version\n");
+                sb.append(ind).append("   PreparedStatement old = conn.prepareStatement(\"SELECT 1\"); */\n");
+                sb.append(ind).append("PreparedStatement ").append(ps).append(" = null;\n");
+            } else if (roll < returns) {
+                sb.append(ind).append("ResultSet ").append(rs).append(" = lookup(conn, id);\n");
+                sb.append(ind).append("if (").append(rs).append(" == null) {\n");
+                sb.append(ind).append("    return out;\n");
+                sb.append(ind).append("}\n");
+                sb.append(ind).append("return ").append(rs).append(";\n");
+                return;
+            } else if (roll < reassigned) {
+                sb.append(ind).append("ResultSet ").append(rs).append(" = lookup(conn, id);\n");
+                sb.append(ind).append(rs).append(" = lookup(conn, id + 1);\n");
+            } else if (roll < nesting && depth < c.depth) {
+                sb.append(ind).append("if (id > ").append(j).append(") {\n");
+                block(sb, r, ind + "    ", depth + 1, c);
+                sb.append(ind).append("}\n");
+            } else if (roll >= nesting && roll < calls) {
+                var key = "key" + depth + j;
+                sb.append(ind).append("PreparedStatement ").append(key)
+                        .append(" = conn.prepareStatement(\"UPDATE keys SET used = 1 WHERE k = ?\");\n");
+                sb.append(ind).append(key).append(".setString(1, ").append(key).append("());\n");
+                sb.append(ind).append(key).append(".executeUpdate();\n");
+            } else {
+                sb.append(ind).append("// plain code\n");
+                sb.append(ind).append("out.add(String.valueOf(id + ").append(j).append("));\n");
+            }
+        }
+    }
+
+    private static int lines(StringBuilder sb, int from) {
+        int n = 0;
+        for (int i = from; i < sb.length(); i++) {
+            if (sb.charAt(i) == '\n') {
+                n++;
+            }
+        }
+        return n;
+    }
+}
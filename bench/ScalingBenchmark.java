@@ -0,0 +1,432 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * End to end runs of {@link StatementCloser} and {@link GeneratedVariableAnalyzer} over generated trees.
+ * <p>
+ * For every tree size a tree is written by {@link DaoCorpus#write}, then both tools run over it at every
+ * parallelism level, each run in a JVM of its own. StatementCloser gets {@code --threads}, the analyzer the
+ * parallelism of the common pool it drains the walk with. A run reports the time of the whole process and of
+ * the run alone, the peak resident set ({@code VmHWM}), the GC and CPU time and, for StatementCloser, the time
+ * all threads spent per phase. Rates are per second of the run alone, so JVM start-up does not hide the
+ * scaling. The tree is written again before every run of StatementCloser, which rewrites it, unless it only
+ * does a dry run; writing it is not measured. The analyzer runs after StatementCloser on the rewritten tree,
+ * with {@code --dry-run} it reads one that was never rewritten, so keep the flag the same as in the baseline.
+ * <p>
+ * Every row goes to a JSON lines report, with the checksum of the tree it ran on. Given the report of an
+ * earlier run as baseline, the rows of the same tool, size and parallelism are compared.
+ * <pre>
+ * javac -d out *.java &amp;&amp; javac -cp out -d out-bench bench/*.java
+ * java -cp out:out-bench ScalingBenchmark [--files 1000,10000] [--threads 1,2,4] [--runs 3]
+ *      [--tools closer,analyzer] [--dir dir] [--xmx 512m] [--dry-run] [--engine regex|ast]
+ *      [--density 68] [--comments 7] [--returns 5] [--reassigned 5] [--nesting 8] [--depth 2] [--calls 3]
+ *      [--lines 100-400] [--seed 42] [--report scaling.jsonl] [--baseline old.jsonl]
+ * </pre>
+ */
+class ScalingBenchmark {
+
+    static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+    static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(\"(?:[^\"\\\\]|\\\\.)*\"|[^,}]+)");
+
+    static List<Integer> files = List.of(1000);
+    static List<Integer> threads = List.of(1, 2, 4, Runtime.getRuntime().availableProcessors());
+    static int runs = 3;
+    static List<String> tools = List.of("closer", "analyzer");
+    static Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "statementcloser-scaling");
+    static String xmx;
+    static boolean dryRun;
+    static String engine = "regex";
+    static Path report = Paths.get("scaling.jsonl");
+    static Path baseline;
+    static final DaoCorpus.Config corpus = new DaoCorpus.Config();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("--child")) {
+            child(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--files":
+                    files = ints(args[++i]);
+                    break;
+                case "--threads":
+                    threads = ints(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--tools":
+                    tools = List.of(args[++i].split(","));
+                    for (var tool : tools) {
+                        if (!tool.equals("closer") && !tool.equals("analyzer")) {
+                            throw new IllegalArgumentException("Unknown tool: " + tool);
+                        }
+                    }
+                    break;
+                case "--dir":
+                    dir = Paths.get(args[++i]);
+                    break;
+                case "--xmx":
+                    xmx = args[++i];
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "--engine":
+                    engine = args[++i];
+                    break;
+                case "--density":
+                    corpus.density = Integer.parseInt(args[++i]);
+                    break;
+                case "--comments":
+                    corpus.comments = Integer.parseInt(args[++i]);
+                    break;
+                case "--returns":
+                    corpus.returns = Integer.parseInt(args[++i]);
+                    break;
+                case "--reassigned":
+                    corpus.reassigned = Integer.parseInt(args[++i]);
+                    break;
+                case "--nesting":
+                    corpus.nesting = Integer.parseInt(args[++i]);
+                    break;
+                case "--depth":
+                    corpus.depth = Integer.parseInt(args[++i]);
+                    break;
+                case "--calls":
+                    corpus.calls = Integer.parseInt(args[++i]);
+                    break;
+                case "--lines":
+                    var range = args[++i].split("-");
+                    corpus.minLines = Integer.parseInt(range[0]);
+                    corpus.maxLines = Integer.parseInt(range[range.length - 1]);
+                    break;
+                case "--seed":
+                    corpus.seed = Long.parseLong(args[++i]);
+                    break;
+                case "--report":
+                    report = Paths.get(args[++i]);
+                    break;
+                case "--baseline":
+                    baseline = Paths.get(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        corpus.validate();
+        var rows = new ArrayList<Map<String, Object>>();
+        System.out.printf(
+                "%-9s %8s %7s %10s %10s %10s %9s %10s %8s  %s%n",
+                "Tool", "Files", "Threads", "wall ms", "run ms", "files/s", "MB/s", "RSS MB", "gc ms", "phases"
+        );
+        for (int n : files) {
+            var root = dir.resolve("tree-" + n);
+            DaoCorpus.Tree tree = null;
+            for (int t : threads) {
+                var results = new HashMap<String, List<Map<String, String>>>();
+                for (int run = 0; run < runs; run++) {
+                    if (tree == null || tools.contains("closer") && !dryRun) {
+                        delete(root);
+                        tree = DaoCorpus.write(root, n, corpus);
+                    }
+                    for (var tool : tools) {
+                        results.computeIfAbsent(tool, k -> new ArrayList<>()).add(spawn(tool, t, root));
+                    }
+                }
+                for (var tool : tools) {
+                    var row = row(tool, tree, t, results.get(tool));
+                    rows.add(row);
+                    print(row);
+                }
+            }
+            delete(root);
+        }
+        try (var out = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            for (var row : rows) {
+                out.write(Reporter.json(row) + "\n");
+            }
+        }
+        System.out.println();
+        System.out.println("Report written to " + report);
+        if (baseline != null) {
+            compare(rows, read(baseline));
+        }
+    }
+
+    /**
+     * Runs one tool in this JVM and prints its measurements as the only line on standard output.
+     */
+    static void child(String tool, String[] args) throws Exception {
+        var out = System.out;
+        System.setOut(NULL);
+        System.setErr(NULL);
+        long gc = gcMillis();
+        long start = System.nanoTime();
+        int exit = 0;
+        if (tool.equals("closer")) {
+            exit = StatementCloser.run(null, args);
+        } else {
+            GeneratedVariableAnalyzer.main(args);
+        }
+        long run = System.nanoTime() - start;
+        var values = new LinkedHashMap<String, Object>();
+        values.put("exit", exit);
+        values.put("runMs", ms(run));
+        values.put("gcMs", gcMillis() - gc);
+        values.put("cpuMs", ProcessHandle.current().info().totalCpuDuration().map(Duration::toMillis).orElse(-1L));
+        values.put("peakRssKb", peakRssKb());
+        if (tool.equals("closer")) {
+            for (var phase : Metrics.Phase.values()) {
+                values.put(phase.name().toLowerCase(Locale.ROOT) + "Ms", ms(Metrics.nanos(phase)));
+            }
+        }
+        out.println(Reporter.json(values));
+        out.flush();
+    }
+
+    static Map<String, String> spawn(String tool, int threads, Path root) throws Exception {
+        var command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command()
+                .orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+        if (xmx != null) {
+            command.add("-Xmx" + xmx);
+        }
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + threads);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ScalingBenchmark.class.getName());
+        command.add("--child");
+        command.add(tool);
+        command.add(root.toString());
+        if (tool.equals("closer")) {
+            command.addAll(List.of("--threads", String.valueOf(threads), "--engine", engine, "--metrics"));
+            if (dryRun) {
+                command.add("--dry-run");
+            }
+        }
+        long start = System.nanoTime();
+        var process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String result = null;
+        try (var in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("{")) {
+                    result = line;
+                }
+            }
+        }
+        int exit = process.waitFor();
+        long wall = System.nanoTime() - start;
+        if (result == null) {
+            throw new IllegalStateException(tool + " exited with " + exit + " before reporting");
+        }
+        var values = parse(result);
+        values.put("wallMs", String.valueOf(ms(wall)));
+        return values;
+    }
+
+    /**
+     * Medians of the runs, the peak resident set is the largest of them.
+     */
+    static Map<String, Object> row(String tool, DaoCorpus.Tree tree, int threads, List<Map<String, String>> results) {
+        var row = new LinkedHashMap<String, Object>();
+        row.put("tool", tool);
+        row.put("files", tree.files);
+        row.put("threads", threads);
+        row.put("runs", results.size());
+        row.put("bytes", tree.bytes);
+        row.put("corpus", Long.toHexString(tree.checksum));
+        row.put("config", corpus.toString());
+        row.put("exit", results.stream().mapToInt(r -> Integer.parseInt(r.get("exit"))).max().orElse(0));
+        double run = median(results, "runMs");
+        row.put("wallMs", median(results, "wallMs"));
+        row.put("runMs", run);
+        row.put("filesPerSec", round(tree.files / (run / 1000)));
+        row.put("mbPerSec", round(tree.bytes / 1048576.0 / (run / 1000)));
+        row.put("peakRssKb", results.stream().mapToLong(r -> Long.parseLong(r.get("peakRssKb"))).max().orElse(-1));
+        row.put("gcMs", median(results, "gcMs"));
+        row.put("cpuMs", median(results, "cpuMs"));
+        for (var key : results.get(0).keySet()) {
+            if (key.endsWith("Ms") && !row.containsKey(key)) {
+                row.put(key, median(results, key));
+            }
+        }
+        return row;
+    }
+
+    static void print(Map<String, Object> row) {
+        System.out.printf(
+                "%-9s %8s %7s %10.1f %10.1f %10.1f %9.1f %10.1f %8.1f  %s%n",
+                row.get("tool"),
+                row.get("files"),
+                row.get("threads"),
+                (double) row.get("wallMs"),
+                (double) row.get("runMs"),
+                (double) row.get("filesPerSec"),
+                (double) row.get("mbPerSec"),
+                (long) row.get("peakRssKb") / 1024.0,
+                (double) row.get("gcMs"),
+                phases(row)
+        );
+    }
+
+    /**
+     * Shares of the thread time of StatementCloser per phase, detection and extraction are part of rewrite.
+     * The walk runs alongside the others, it is only in the report.
+     */
+    static String phases(Map<String, Object> row) {
+        var shown = List.of("read", "decode", "rewrite", "verify", "write");
+        double total = 0;
+        for (var phase : shown) {
+            total += (double) row.getOrDefault(phase + "Ms", 0.0);
+        }
+        if (total == 0) {
+            return "";
+        }
+        var sb = new StringBuilder();
+        for (var phase : shown) {
+            double ms = (double) row.getOrDefault(phase + "Ms", 0.0);
+            if (ms * 100 / total >= 0.5) {
+                sb.append(sb.length() == 0 ? "" : " ").append(String.format("%s %.0f%%", phase, ms * 100 / total));
+            }
+        }
+        return sb.toString();
+    }
+
+    static void compare(List<Map<String, Object>> rows, List<Map<String, String>> old) {
+        var byKey = old.stream().collect(Collectors.toMap(ScalingBenchmark::key, r -> r, (a, b) -> b));
+        System.out.println();
+        System.out.printf(
+                "%-9s %8s %7s %12s %12s %12s %9s  %s%n",
+                "Tool", "Files", "Threads", "run ms", "files/s", "RSS", "gc ms", "vs " + baseline
+        );
+        for (var row : rows) {
+            var before = byKey.get(key(row));
+            if (before == null) {
+                continue;
+            }
+            System.out.printf(
+                    "%-9s %8s %7s %12s %12s %12s %9s  %s%n",
+                    row.get("tool"),
+                    row.get("files"),
+                    row.get("threads"),
+                    change(before.get("runMs"), row.get("runMs")),
+                    change(before.get("filesPerSec"), row.get("filesPerSec")),
+                    change(before.get("peakRssKb"), row.get("peakRssKb")),
+                    change(before.get("gcMs"), row.get("gcMs")),
+                    String.valueOf(row.get("corpus")).equals(before.get("corpus")) ? "" : "different corpus"
+            );
+        }
+    }
+
+    static String key(Map<String, ?> row) {
+        return row.get("tool") + " " + row.get("files") + " " + row.get("threads");
+    }
+
+    static String change(String before, Object after) {
+        double b = Double.parseDouble(before);
+        double a = Double.parseDouble(String.valueOf(after));
+        return b == 0 ? "n/a" : String.format("%+.1f%%", (a - b) * 100 / b);
+    }
+
+    static List<Map<String, String>> read(Path file) throws IOException {
+        var rows = new ArrayList<Map<String, String>>();
+        for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                rows.add(parse(line));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Fields of a flat JSON object as written by {@link Reporter#json(Map)}, strings without their quotes.
+     */
+    static Map<String, String> parse(String json) {
+        var values = new LinkedHashMap<String, String>();
+        var m = FIELD.matcher(json);
+        while (m.find()) {
+            var value = m.group(2).trim();
+            if (value.startsWith("\"")) {
+                value = value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+            }
+            values.put(m.group(1), value);
+        }
+        return values;
+    }
+
+    static double median(List<Map<String, String>> results, String key) {
+        var sorted = results.stream().mapToDouble(r -> Double.parseDouble(r.getOrDefault(key, "0"))).sorted().toArray();
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : round((sorted[mid - 1] + sorted[mid]) / 2);
+    }
+
+    static double ms(long nanos) {
+        return round(nanos / 1e6);
+    }
+
+    static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    static List<Integer> ints(String list) {
+        return Arrays.stream(list.split(",")).map(Integer::parseInt).collect(Collectors.toList());
+    }
+
+    /**
+     * High water mark of the resident set from {@code /proc}, {@code -1} where there is none.
+     */
+    static long peakRssKb() {
+        try {
+            for (var line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | RuntimeException ignore) {
+        }
+        return -1;
+    }
+
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (var walk = Files.walk(root)) {
+            for (var p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+}
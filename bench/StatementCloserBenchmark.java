@@ -0,0 +1,213 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the detection patterns and the rewrite steps of {@link StatementCloser}.
+ * <p>
+ * Works like JMH in throughput mode with {@code -prof gc}: every benchmark is warmed up, measured in fixed
+ * time iterations on a single thread and reported as operations per second together with the bytes
+ * allocated per operation and the allocation rate.
+ * <pre>
+ * javac -d out *.java && javac -cp out -d out-bench bench/*.java
+ * java -cp out:out-bench StatementCloserBenchmark [filter] [-wi 5] [-i 5] [-r 1000]
+ * </pre>
+ */
+class StatementCloserBenchmark {
+
+    static final Map<String, Integer> SIZES = new LinkedHashMap<>();
+
+    static {
+        SIZES.put("small", 150);
+        SIZES.put("medium", 1_500);
+        SIZES.put("large", 10_000);
+    }
+
+    static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+    static volatile Object sink;
+
+    static Pattern filter = Pattern.compile(".*");
+    static int warmupIterations = 5;
+    static int iterations = 5;
+    static long iterationMillis = 1000;
+
+    static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-r":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    filter = Pattern.compile(args[i]);
+            }
+        }
+        var patterns = new LinkedHashMap<String, Pattern>();
+        patterns.put("psNamePattern", StatementCloser.psNamePattern);
+        patterns.put("psInitPattern", StatementCloser.psInitPattern);
+        patterns.put("rsNamePattern", StatementCloser.rsNamePattern);
+        patterns.put("rsInitPattern", StatementCloser.rsInitPattern);
+        patterns.put("usingStatementExecute1", StatementCloser.usingStatementExecute1);
+        patterns.put("usingStatementExecute2", StatementCloser.usingStatementExecute2);
+        patterns.put("statementFix", StatementCloser.statementFix);
+
+        System.out.printf(
+                "%-45s %5s %16s %12s %14s %12s %8s%n",
+                "Benchmark", "Cnt", "Score", "Error", "alloc B/op", "alloc MB/s", "gc ms"
+        );
+        var path = Paths.get("Bench.java");
+        for (var size : SIZES.entrySet()) {
+            var text = DaoCorpus.file(42, "Bench", size.getValue());
+            for (var p : patterns.entrySet()) {
+                run("pattern." + p.getKey() + "." + size.getKey(), () -> count(p.getValue(), text));
+            }
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            var plain = text.replace("Statement", "Statemant").replace("ResultSet", "ResultSat").getBytes(StandardCharsets.UTF_8);
+            run("prefilter.hit." + size.getKey(), () -> StatementCloser.prefilter.matches(bytes, 0, bytes.length));
+            run("prefilter.miss." + size.getKey(), () -> StatementCloser.prefilter.matches(plain, 0, plain.length));
+            int body = text.indexOf('{') + 1;
+            run("extractContent." + size.getKey(), () -> StatementCloser.extractContent(text, body));
+            run("rewrite." + size.getKey(), () -> StatementCloser.rewrite(path, text));
+            run("rewrite.ast." + size.getKey(), () -> AstEngine.rewrite(path, text, GitChanges.ALL));
+        }
+        var text = DaoCorpus.file(42, "Bench", SIZES.get("large"));
+        var ps = heads(StatementCloser.psNamePattern, text);
+        var rs = heads(StatementCloser.rsNamePattern, text);
+        run("extractPSTryStatement", cycle(ps, StatementCloser::extractPSTryStatement));
+        run("extractRSTryStatement", cycle(rs, StatementCloser::extractRSTryStatement));
+    }
+
+    /**
+     * Declaration heads as {@link StatementCloser#extractContent(ResourceRule, PieceTable, int)}
+     * passes them to the try statement extractors.
+     */
+    static List<String> heads(Pattern p, String text) {
+        var heads = new ArrayList<String>();
+        var m = p.matcher(text);
+        while (m.find()) {
+            heads.add(text.substring(m.start(), Math.min(m.end() + 50, text.length() - 1)).replaceAll("(?m)^\\s*//.*\\s*$", ""));
+        }
+        return heads;
+    }
+
+    static Supplier<Object> cycle(List<String> inputs, Function<String, String> op) {
+        var i = new int[1];
+        return () -> {
+            try {
+                return op.apply(inputs.get(i[0]++ % inputs.size()));
+            } catch (IllegalStateException e) {
+                return e;
+            }
+        };
+    }
+
+    static int count(Pattern p, CharSequence text) {
+        var m = p.matcher(text);
+        int n = 0;
+        while (m.find()) {
+            n++;
+        }
+        return n;
+    }
+
+    static void run(String name, Supplier<Object> op) {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        var err = System.err;
+        System.setErr(NULL);
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(op);
+            }
+            var scores = new double[iterations];
+            long allocated = 0;
+            long ops = 0;
+            long nanos = 0;
+            long gc = gcMillis();
+            for (int i = 0; i < iterations; i++) {
+                var r = iteration(op);
+                scores[i] = r[0] * 1e9 / r[2];
+                ops += r[0];
+                allocated += r[1];
+                nanos += r[2];
+            }
+            gc = gcMillis() - gc;
+            double mean = 0;
+            for (var s : scores) {
+                mean += s;
+            }
+            mean /= scores.length;
+            double variance = 0;
+            for (var s : scores) {
+                variance += (s - mean) * (s - mean);
+            }
+            double error = scores.length > 1 ? 3.29 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+            System.out.printf(
+                    "%-45s %5d %12.3f ops/s %12.3f %14.1f %12.1f %8d%n",
+                    name,
+                    iterations,
+                    mean,
+                    error,
+                    (double) allocated / ops,
+                    allocated / (nanos / 1e9) / (1024 * 1024),
+                    gc
+            );
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    /**
+     * @return operations, allocated bytes and elapsed nanoseconds of one iteration
+     */
+    static long[] iteration(Supplier<Object> op) {
+        var thread = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long ops = 0;
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long now;
+        do {
+            sink = op.get();
+            quiet();
+            ops++;
+        } while ((now = System.nanoTime()) < deadline);
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        return new long[]{ops, allocated, now - start};
+    }
+
+    /**
+     * Keeps the per file report of the closer from piling up between operations.
+     */
+    static void quiet() {
+        StatementCloser.report.remove();
+    }
+
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+}
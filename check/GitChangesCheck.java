@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link GitChanges} over a scratch git repository and checks the files and lines it reports, exits with
+ * an exception on the first wrong answer.
+ * <p>
+ * The repository holds files whose names git writes differently in a diff header: plain, with a space, which
+ * ends the header with a tab, and with a quote, which git quotes. Every file gets line 2 changed after the
+ * base commit, and one untracked file is added.
+ * <pre>
+ * javac -d out *.java &amp;&amp; javac -cp out -d out-check check/*.java
+ * java -cp out:out-check GitChangesCheck
+ * </pre>
+ */
+class GitChangesCheck {
+
+    static final List<String> NAMES = List.of("plain/F.java", "a b/F G.java", "q\"/H.java");
+
+    public static void main(String[] args) throws Exception {
+        var root = Files.createTempDirectory("git-changes");
+        try {
+            git(root, "init", "-q");
+            for (var name : NAMES) {
+                var f = root.resolve(name);
+                Files.createDirectories(f.getParent());
+                Files.writeString(f, "class A {\n}\n");
+            }
+            git(root, "add", "-A");
+            git(root, "-c", "user.name=check", "-c", "user.email=check@localhost", "commit", "-q", "-m", "base");
+            for (var name : NAMES) {
+                Files.writeString(root.resolve(name), "class A {\n    int changed;\n}\n");
+            }
+            Files.writeString(root.resolve("new file.java"), "class B {\n}\n");
+
+            var changes = GitChanges.since(root, "HEAD", true);
+            check("changed files", NAMES.size() + 1, changes.files().size());
+            for (var name : NAMES) {
+                var f = root.resolve(name);
+                check(name + " listed", 1, changes.files().contains(f) ? 1 : 0);
+                check(name + " line 2 changed", 1, changes.lines(f).test(2) ? 1 : 0);
+                check(name + " line 1 unchanged", 0, changes.lines(f).test(1) ? 1 : 0);
+            }
+            check("untracked file changed everywhere", 1, changes.lines(root.resolve("new file.java")) == GitChanges.ALL ? 1 : 0);
+        } finally {
+            delete(root);
+        }
+    }
+
+    static void git(Path root, String... args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.add("-C");
+        command.add(root.toString());
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        var out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("git " + String.join(" ", args) + " failed: " + out);
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        try (var walk = Files.walk(root)) {
+            for (var f : walk.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toArray(Path[]::new)) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    static void check(String what, long expected, long actual) {
+        if (expected != actual) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+        System.out.println("ok   " + what + ": " + actual);
+    }
+}